@@ -1,5 +1,6 @@
 package gaillard.mongo;
 
+import com.mongodb.MongoServerException;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.*;
 
@@ -9,25 +10,126 @@ import java.util.Map.Entry;
 
 import net.c0f3.queuebox.mongo.MongoQueueCoreIndexes;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.types.ObjectId;
 
 public final class MongoQueueCore {
 
+    private static final String NOW = "$$NOW";
+
     private final MongoQueueCoreIndexes indexes;
     private final MongoCollection<Document> collection;
+    private final MongoQueueLeases leases;
+    private final MongoQueueSchema schema;
+    private final Document getSort;
+    private final boolean serverClockRequested;
+    private volatile Boolean serverClock;
 
     public MongoQueueCore(final MongoCollection<Document> collection) {
+        this(collection, false);
+    }
+
+    /**
+     * @param collection     collection of messages. Should not be null
+     * @param partialIndexes ensureGetIndex() builds indexes covering only ready or only running messages
+     *                       and drops full indexes built before
+     */
+    public MongoQueueCore(final MongoCollection<Document> collection, final boolean partialIndexes) {
+        this(collection, null, partialIndexes);
+    }
+
+    /**
+     * @param collection     collection of messages. Should not be null
+     * @param leases         collection claimed messages are moved to until they are acknowledged or released,
+     *                       so collection of messages holds only messages ready for get(). Null to keep claimed
+     *                       messages in collection of messages marked as running
+     * @param partialIndexes ensureGetIndex() builds indexes covering only ready or only running messages
+     *                       and drops full indexes built before
+     */
+    public MongoQueueCore(final MongoCollection<Document> collection, final MongoCollection<Document> leases,
+                          final boolean partialIndexes) {
+        this(collection, leases, partialIndexes, false);
+    }
+
+    /**
+     * @param collection     collection of messages. Should not be null
+     * @param leases         collection claimed messages are moved to until they are acknowledged or released,
+     *                       so collection of messages holds only messages ready for get(). Null to keep claimed
+     *                       messages in collection of messages marked as running
+     * @param partialIndexes ensureGetIndex() builds indexes covering only ready or only running messages
+     *                       and drops full indexes built before
+     * @param serverClock    created, earliestGet and resetTimestamp are set and compared with $$NOW of server
+     *                       by pipeline updates, see {@link #isServerClock()}
+     */
+    public MongoQueueCore(final MongoCollection<Document> collection, final MongoCollection<Document> leases,
+                          final boolean partialIndexes, final boolean serverClock) {
+        this(collection, leases, MongoQueueSchema.FULL, partialIndexes, serverClock);
+    }
+
+    /**
+     * @param collection     collection of messages. Should not be null
+     * @param leases         collection claimed messages are moved to until they are acknowledged or released,
+     *                       so collection of messages holds only messages ready for get(). Null to keep claimed
+     *                       messages in collection of messages marked as running
+     * @param schema         names of fields of stored messages, documents of other schema are not seen by get()
+     *                       until they are converted with migrate(). Should not be null
+     * @param partialIndexes ensureGetIndex() builds indexes covering only ready or only running messages
+     *                       and drops full indexes built before
+     * @param serverClock    created, earliestGet and resetTimestamp are set and compared with $$NOW of server
+     *                       by pipeline updates, see {@link #isServerClock()}
+     */
+    public MongoQueueCore(final MongoCollection<Document> collection, final MongoCollection<Document> leases,
+                          final MongoQueueSchema schema, final boolean partialIndexes, final boolean serverClock) {
         Objects.requireNonNull(collection);
+        Objects.requireNonNull(schema);
 
         this.collection = collection;
-        this.indexes = new MongoQueueCoreIndexes<Document>(collection);
+        this.schema = schema;
+        this.getSort = new Document(schema.getPriority(), 1).append(schema.getCreated(), 1);
+        this.indexes = new MongoQueueCoreIndexes<Document>(collection, partialIndexes, schema);
+        this.leases = leases == null ? null : new MongoQueueLeases(collection, leases, schema);
+        this.serverClockRequested = serverClock;
+    }
+
+    public MongoQueueSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Whether scheduling fields follow clock of server. Dates passed to send(), ackSend(), requeue() and release()
+     * are then taken relative to local clock at call and applied to $$NOW, so delays do not depend on clock skew
+     * between nodes. Server clock needs pipeline updates (MongoDB 4.2+) and is not used with lease collection,
+     * which moves whole documents; client clock is used otherwise.
+     *
+     * @return true if server clock was requested and is supported by server
+     */
+    public boolean isServerClock() {
+        Boolean result = serverClock;
+        if (result == null) {
+            result = serverClockRequested && leases == null && supportsPipelineUpdate();
+            serverClock = result;
+        }
+        return result;
+    }
+
+    private boolean supportsPipelineUpdate() {
+        try {
+            // update matching nothing is only parsed by server
+            collection.updateOne(
+                    new Document("_id", new ObjectId()),
+                    Collections.singletonList(new Document("$set", new Document(schema.getEarliestGet(), NOW)))
+            );
+            return true;
+        } catch (final MongoServerException | IllegalArgumentException e) {
+            return false;
+        }
     }
 
     /**
      * Ensure index for get() method with no fields before or after sort fields
      */
     public void ensureGetIndex() {
-        indexes.ensureGetIndex(new Document());
+        ensureGetIndex(new Document());
     }
 
     /**
@@ -36,7 +138,7 @@ public final class MongoQueueCore {
      * @param beforeSort fields in get() call that should be before the sort fields in the index. Should not be null
      */
     public void ensureGetIndex(final Document beforeSort) {
-        indexes.ensureGetIndex(beforeSort);
+        ensureGetIndex(beforeSort, new Document());
     }
 
     /**
@@ -46,6 +148,11 @@ public final class MongoQueueCore {
      * @param afterSort  fields in get() call that should be after the sort fields in the index. Should not be null
      */
     public void ensureGetIndex(final Document beforeSort, final Document afterSort) {
+        if (leases != null) {
+            indexes.ensureReadyIndex(beforeSort, afterSort);
+            new MongoQueueCoreIndexes<Document>(leases.getLeases(), false, schema).ensureLeaseIndex();
+            return;
+        }
         indexes.ensureGetIndex(beforeSort, afterSort);
     }
 
@@ -60,11 +167,13 @@ public final class MongoQueueCore {
     }
 
     /**
-     * Get a non running message from queue with a wait of 3 seconds and poll of 200 milliseconds
+     * Get a non running message from queue with a wait of 3 seconds and poll of 200 milliseconds.
+     * Abandoned messages are not reset by get(), {@link #resetStuck()} should be called periodically,
+     * see {@link net.c0f3.queuebox.mongo.MongoQueueReaper}
      *
      * @param query         query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
      *                      invalid {$and: [{...}, {...}]}. Should not be null.
-     * @param resetDuration duration in seconds before this message is considered abandoned and will be given with another call to get()
+     * @param resetDuration duration in seconds before this message is considered abandoned and may be reset by {@link #resetStuck()}
      * @return message or null
      */
     public Document get(final Document query, final int resetDuration) {
@@ -76,7 +185,7 @@ public final class MongoQueueCore {
      *
      * @param query         query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
      *                      invalid {$and: [{...}, {...}]}. Should not be null.
-     * @param resetDuration duration in seconds before this message is considered abandoned and will be given with another call to get()
+     * @param resetDuration duration in seconds before this message is considered abandoned and may be reset by {@link #resetStuck()}
      * @param waitDuration  duration in milliseconds to keep polling before returning null
      * @return message or null
      */
@@ -85,11 +194,12 @@ public final class MongoQueueCore {
     }
 
     /**
-     * Get a non running message from queue
+     * Get a non running message from queue. Abandoned messages are not reset by get(),
+     * {@link #resetStuck()} should be called periodically, see {@link net.c0f3.queuebox.mongo.MongoQueueReaper}
      *
      * @param query         query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
      *                      invalid {$and: [{...}, {...}]}. Should not be null.
-     * @param resetDuration duration in seconds before this message is considered abandoned and will be given with another call to get()
+     * @param resetDuration duration in seconds before this message is considered abandoned and may be reset by {@link #resetStuck()}
      * @param waitDuration  duration in milliseconds to keep polling before returning null
      * @param pollDuration  duration in milliseconds between poll attempts
      * @return message or null
@@ -97,33 +207,41 @@ public final class MongoQueueCore {
     public Document get(final Document query, final int resetDuration, final int waitDuration, long pollDuration) {
         Objects.requireNonNull(query);
 
-        //reset stuck messages
-        collection.updateMany(new Document("running", true).append("resetTimestamp", new Document("$lte", new Date())),
-                new Document("$set", new Document("running", false)),
-                new UpdateOptions().upsert(false));
-
-        final Document builtQuery = new Document("running", false);
-        for (final Entry<String, Object> field : query.entrySet()) {
-            builtQuery.append("payload." + field.getKey(), field.getValue());
+        if (leases != null) {
+            return getLeased(query, resetDuration, waitDuration, pollDuration);
         }
 
-        builtQuery.append("earliestGet", new Document("$lte", new Date()));
-
-        final Date resetTimestamp = Date.from(Instant.now().plusSeconds(resetDuration));
+        final Document builtQuery = buildGetQuery(query);
 
-        final Document sort = new Document("priority", 1).append("created", 1);
-        final Document update = new Document("$set", new Document("running", true).append("resetTimestamp", resetTimestamp));
-        final Document fields = new Document("payload", 1);
+        final Document lease = new Document(schema.getRunning(), true)
+                .append(schema.getResetTimestamp(), resetTimestamp(resetDuration));
+        final Document fields = new Document(schema.getPayload(), 1);
 
         long nowTimestamp = System.currentTimeMillis();
         long endTimestamp = nowTimestamp + Math.max(waitDuration, 0);
         while (nowTimestamp <= endTimestamp) {
             // final Document message = (Document) collection.findAndModify(builtQuery, fields, sort, false, update, true, false);
-            FindOneAndUpdateOptions opts = new FindOneAndUpdateOptions().sort(sort).upsert(false).returnDocument(ReturnDocument.AFTER).projection(fields);
-            final Document message = collection.findOneAndUpdate(builtQuery, update, opts);
+            FindOneAndUpdateOptions opts = new FindOneAndUpdateOptions().sort(getSort).upsert(false).returnDocument(ReturnDocument.AFTER).projection(fields);
+            final Document message = isServerClock()
+                    ? collection.findOneAndUpdate(builtQuery, buildPipeline(lease, false, false), opts)
+                    : collection.findOneAndUpdate(builtQuery, buildUpdate(lease, false, false), opts);
             if (message != null) {
-                final ObjectId id = message.getObjectId("_id");
-                return ((Document) message.get("payload")).append("id", id);
+                return toPayload(message);
+            }
+            trySleep(pollDuration);
+            nowTimestamp = System.currentTimeMillis();
+        }
+
+        return null;
+    }
+
+    private Document getLeased(final Document query, final int resetDuration, final int waitDuration, long pollDuration) {
+        long nowTimestamp = System.currentTimeMillis();
+        long endTimestamp = nowTimestamp + Math.max(waitDuration, 0);
+        while (nowTimestamp <= endTimestamp) {
+            final List<Document> messages = getBatch(query, resetDuration, 1);
+            if (!messages.isEmpty()) {
+                return messages.get(0);
             }
             trySleep(pollDuration);
             nowTimestamp = System.currentTimeMillis();
@@ -132,6 +250,314 @@ public final class MongoQueueCore {
         return null;
     }
 
+    /**
+     * Get up to max non running messages from queue without waiting. All returned messages are claimed
+     * with the same claim token, so the whole batch costs a constant number of round-trips instead of one per message.
+     * Abandoned messages are returned to queue only by {@link #resetStuck()}, see {@link net.c0f3.queuebox.mongo.MongoQueueReaper}
+     *
+     * @param query         query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     *                      invalid {$and: [{...}, {...}]}. Should not be null.
+     * @param resetDuration duration in seconds before this message is considered abandoned and may be reset by {@link #resetStuck()}
+     * @param max           maximum count of messages to claim. Should be positive
+     * @return claimed messages in get() order with claim token in "claim" field and count of previous
+     * release() calls in "attempts" field if any, empty list if nothing is ready
+     */
+    public List<Document> getBatch(final Document query, final int resetDuration, final int max) {
+        final List<Document> result = new ArrayList<>();
+        for (final Document message : claimBatch(Document.class, query, resetDuration, max)) {
+            result.add(toPayload(message));
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #getBatch(Document, int, int)} but messages are returned as received from server,
+     * so payloads are decoded only when needed
+     *
+     * @return claimed messages in get() order with "_id", payload, claim and attempts (if any) fields named by schema
+     */
+    public List<RawBsonDocument> getRawBatch(final Document query, final int resetDuration, final int max) {
+        return claimBatch(RawBsonDocument.class, query, resetDuration, max);
+    }
+
+    /**
+     * Same as {@link #getBatch(Document, int, int)} with separate limit for each value of top level payload field,
+     * so messages of one group can not take the whole batch. Groups still below their limit are claimed again
+     * while other groups had more messages ready than their limits.
+     *
+     * @param query         query where top level fields do not contain operators. Should not be null
+     * @param resetDuration duration in seconds before this message is considered abandoned and may be reset by {@link #resetStuck()}
+     * @param groupField    top level payload field grouping messages, like destination. Should not be null
+     * @param limits        maximum count of messages by value of group field, only these values are queried. Should not be null
+     * @return claimed messages, same as getBatch()
+     */
+    public List<Document> getBatch(final Document query, final int resetDuration, final String groupField,
+                                   final Map<?, Integer> limits) {
+        final List<Document> result = new ArrayList<>();
+        for (final Document message : claimGroups(Document.class, query, resetDuration, groupField, limits)) {
+            result.add(toPayload(message));
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #getBatch(Document, int, String, Map)} with messages returned as received from server
+     */
+    public List<RawBsonDocument> getRawBatch(final Document query, final int resetDuration, final String groupField,
+                                             final Map<?, Integer> limits) {
+        return claimGroups(RawBsonDocument.class, query, resetDuration, groupField, limits);
+    }
+
+    private <D> List<D> claimBatch(final Class<D> documentClass, final Document query, final int resetDuration, final int max) {
+        Objects.requireNonNull(query);
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be positive");
+        }
+
+        final Document builtQuery = buildGetQuery(query);
+
+        if (leases != null) {
+            final Date resetTimestamp = Date.from(Instant.now().plusSeconds(resetDuration));
+            return leases.claim(documentClass, builtQuery, getSort, resetTimestamp, max);
+        }
+
+        final List<Object> candidates = new ArrayList<>(max);
+        for (final Document candidate : collection.find(builtQuery)
+                .sort(getSort)
+                .limit(max)
+                .projection(new Document("_id", 1))) {
+            candidates.add(candidate.get("_id"));
+        }
+        if (candidates.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return claimCandidates(documentClass, builtQuery, candidates, resetDuration);
+    }
+
+    private <D> List<D> claimGroups(final Class<D> documentClass, final Document query, final int resetDuration,
+                                    final String groupField, final Map<?, Integer> limits) {
+        Objects.requireNonNull(query);
+        Objects.requireNonNull(groupField);
+        Objects.requireNonNull(limits);
+
+        final Map<Object, Integer> remaining = new HashMap<>();
+        for (final Entry<?, Integer> limit : limits.entrySet()) {
+            if (limit.getValue() != null && limit.getValue() > 0) {
+                remaining.put(limit.getKey(), limit.getValue());
+            }
+        }
+
+        final List<D> result = new ArrayList<>();
+        while (!remaining.isEmpty()) {
+            final Document builtQuery = buildGetQuery(new Document(query)
+                    .append(groupField, new Document("$in", new ArrayList<>(remaining.keySet()))));
+            int max = 0;
+            for (final int left : remaining.values()) {
+                max += left;
+            }
+
+            final List<Object> candidates = new ArrayList<>(max);
+            int found = 0;
+            boolean skipped = false;
+            for (final Document candidate : collection.find(builtQuery)
+                    .sort(getSort)
+                    .limit(max)
+                    .projection(new Document("_id", 1).append(schema.payloadField(groupField), 1))) {
+                found++;
+                final Object group = ((Document) candidate.get(schema.getPayload())).get(groupField);
+                final int left = remaining.getOrDefault(group, 0);
+                if (left <= 0) {
+                    skipped = true;
+                    continue;
+                }
+                candidates.add(candidate.get("_id"));
+                remaining.put(group, left - 1);
+            }
+            if (!candidates.isEmpty()) {
+                result.addAll(claimCandidates(documentClass, builtQuery, candidates, resetDuration));
+            }
+            // group which reached its limit is left out, so the next query is shorter
+            remaining.values().removeIf(left -> left <= 0);
+            if (found < max || !skipped) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    private <D> List<D> claimCandidates(final Class<D> documentClass, final Document builtQuery,
+                                        final List<Object> candidates, final int resetDuration) {
+        // candidates are re-checked against the ready query, so messages taken by another consumer meanwhile are skipped
+        final Document claimQuery = new Document(builtQuery).append("_id", new Document("$in", candidates));
+        if (leases != null) {
+            final Date resetTimestamp = Date.from(Instant.now().plusSeconds(resetDuration));
+            return leases.claim(documentClass, claimQuery, getSort, resetTimestamp, candidates.size());
+        }
+
+        final ObjectId claim = new ObjectId();
+        final Document lease = new Document(schema.getRunning(), true)
+                .append(schema.getResetTimestamp(), resetTimestamp(resetDuration))
+                .append(schema.getClaim(), claim);
+        final long claimed = isServerClock()
+                ? collection.updateMany(claimQuery, buildPipeline(lease, false, false)).getModifiedCount()
+                : collection.updateMany(claimQuery, buildUpdate(lease, false, false)).getModifiedCount();
+        if (claimed == 0) {
+            return new ArrayList<>();
+        }
+
+        final List<D> result = new ArrayList<>(candidates.size());
+        collection.withDocumentClass(documentClass)
+                .find(new Document("_id", new Document("$in", candidates)).append(schema.getClaim(), claim))
+                .sort(getSort)
+                .projection(new Document(schema.getPayload(), 1).append(schema.getClaim(), 1).append(schema.getAttempts(), 1))
+                .into(result);
+        return result;
+    }
+
+    /**
+     * Reset running messages with expired resetTimestamp, so they could be given with another call to get().
+     * Abandoned delivery is counted in attempts like release(), so message killing its consumer reaches retry limit.
+     * Should be called periodically, see {@link net.c0f3.queuebox.mongo.MongoQueueReaper}
+     *
+     * @return count of messages returned to queue
+     */
+    public long resetStuck() {
+        if (leases != null) {
+            return leases.resetStuck();
+        }
+        final Document stuckQuery = new Document(schema.getRunning(), true);
+        appendPast(stuckQuery, schema.getResetTimestamp());
+        return collection.updateMany(stuckQuery,
+                buildUpdate(new Document(schema.getRunning(), false), false, true),
+                new UpdateOptions().upsert(false)).getModifiedCount();
+    }
+
+    private Document buildGetQuery(final Document query) {
+        final Document builtQuery = new Document(schema.getRunning(), false);
+        for (final Entry<String, Object> field : query.entrySet()) {
+            builtQuery.append(schema.payloadField(field.getKey()), field.getValue());
+        }
+
+        appendPast(builtQuery, schema.getEarliestGet());
+        return builtQuery;
+    }
+
+    /**
+     * Append condition for date field not later than now
+     */
+    private void appendPast(final Document query, final String field) {
+        if (isServerClock()) {
+            query.append("$expr", new Document("$lte", Arrays.asList("$" + field, NOW)));
+        } else {
+            query.append(field, new Document("$lte", new Date()));
+        }
+    }
+
+    /**
+     * @return resetTimestamp value for lease of resetDuration seconds from now
+     */
+    private Object resetTimestamp(final int resetDuration) {
+        if (isServerClock()) {
+            return new Document("$add", Arrays.asList(NOW, resetDuration * 1000L));
+        }
+        return Date.from(Instant.now().plusSeconds(resetDuration));
+    }
+
+    /**
+     * @return value of date given by local clock, same instant relative to $$NOW with server clock
+     */
+    private Object scheduled(final Date date) {
+        if (isServerClock()) {
+            return new Document("$add", Arrays.asList(NOW, date.getTime() - System.currentTimeMillis()));
+        }
+        return date;
+    }
+
+    private Object now() {
+        return isServerClock() ? NOW : new Date();
+    }
+
+    /**
+     * @param fields       fields to set
+     * @param release      unset claim token
+     * @param countAttempt increment attempts counter
+     */
+    private Document buildUpdate(final Document fields, final boolean release, final boolean countAttempt) {
+        final Document update = new Document("$set", fields);
+        if (release) {
+            update.append("$unset", new Document(schema.getClaim(), ""));
+        }
+        if (countAttempt) {
+            update.append("$inc", new Document(schema.getAttempts(), 1));
+        }
+        return update;
+    }
+
+    /**
+     * Same as buildUpdate() as aggregation pipeline, so values from now(), scheduled() and resetTimestamp()
+     * are evaluated by server. Other values of fields must not be expressions.
+     */
+    private List<Document> buildPipeline(final Document fields, final boolean release, final boolean countAttempt) {
+        final Document set = new Document(fields);
+        if (countAttempt) {
+            set.append(schema.getAttempts(), new Document("$add", Arrays.asList(
+                    new Document("$ifNull", Arrays.asList("$" + schema.getAttempts(), 0)), 1
+            )));
+        }
+        final List<Document> pipeline = new ArrayList<>();
+        pipeline.add(new Document("$set", set));
+        if (release) {
+            pipeline.add(new Document("$unset", schema.getClaim()));
+        }
+        return pipeline;
+    }
+
+    private Document toPayload(final Document message) {
+        final ObjectId id = message.getObjectId("_id");
+        final Document payload = ((Document) message.get(schema.getPayload())).append("id", id);
+        if (message.containsKey(schema.getClaim())) {
+            payload.append("claim", message.get(schema.getClaim()));
+        }
+        if (message.containsKey(schema.getAttempts())) {
+            payload.append("attempts", message.get(schema.getAttempts()));
+        }
+        return payload;
+    }
+
+    /**
+     * Extend lease of running message, so it will not be given with another call to get() while still processed
+     *
+     * @param message       message received from get(). Should not be null. If message has claim token lease is extended
+     *                      only while message is still claimed with it
+     * @param resetDuration duration in seconds from now before this message is considered abandoned
+     * @return true if lease was extended, false if message was already reset, acknowledged or claimed again
+     */
+    public boolean extendLease(final Document message, final int resetDuration) {
+        Objects.requireNonNull(message);
+        return extendLeases(Collections.singletonList(message), resetDuration) == 1;
+    }
+
+    /**
+     * Extend leases of running messages with one update
+     *
+     * @param messages      messages received from get(). Should not be null
+     * @param resetDuration duration in seconds from now before these messages are considered abandoned
+     * @return count of messages with extended lease
+     */
+    public long extendLeases(final Collection<Document> messages, final int resetDuration) {
+        Objects.requireNonNull(messages);
+        if (messages.isEmpty()) {
+            return 0;
+        }
+
+        final Document query = buildClaimedQuery(messages);
+        final Document lease = new Document(schema.getResetTimestamp(), resetTimestamp(resetDuration));
+        if (isServerClock()) {
+            return collection.updateMany(query, buildPipeline(lease, false, false)).getMatchedCount();
+        }
+        return claimed().updateMany(query, buildUpdate(lease, false, false)).getMatchedCount();
+    }
+
     private void trySleep(long pollDuration) {
         if(pollDuration<=0) {
             return;
@@ -157,9 +583,12 @@ public final class MongoQueueCore {
         final Document completeQuery = new Document();
 
         for (final Entry<String, Object> field : query.entrySet()) {
-            completeQuery.append("payload." + field.getKey(), field.getValue());
+            completeQuery.append(schema.payloadField(field.getKey()), field.getValue());
         }
 
+        if (leases != null) {
+            return collection.countDocuments(completeQuery) + leases.getLeases().countDocuments(completeQuery);
+        }
         return collection.countDocuments(completeQuery);
     }
 
@@ -174,13 +603,13 @@ public final class MongoQueueCore {
     public long count(final Document query, final boolean running) {
         Objects.requireNonNull(query);
 
-        final Document completeQuery = new Document("running", running);
+        final Document completeQuery = new Document(schema.getRunning(), running);
 
         for (final Entry<String, Object> field : query.entrySet()) {
-            completeQuery.append("payload." + field.getKey(), field.getValue());
+            completeQuery.append(schema.payloadField(field.getKey()), field.getValue());
         }
 
-        return collection.countDocuments(completeQuery);
+        return (running ? claimed() : collection).countDocuments(completeQuery);
     }
 
     /**
@@ -195,7 +624,27 @@ public final class MongoQueueCore {
             throw new IllegalArgumentException("id must be an ObjectId");
         }
 
-        collection.deleteOne(new Document("_id", id));
+        remove(new Document("_id", id), 1);
+    }
+
+    /**
+     * Acknowledge messages were processed and remove them from queue with one delete
+     *
+     * @param ids ids of messages received from get(). Should not be null or contain non ObjectId values
+     * @return count of removed messages
+     */
+    public long ackAll(final Collection<?> ids) {
+        Objects.requireNonNull(ids);
+        for (final Object id : ids) {
+            if (id == null || id.getClass() != ObjectId.class) {
+                throw new IllegalArgumentException("id must be an ObjectId");
+            }
+        }
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        return remove(new Document("_id", new Document("$in", ids)), ids.size());
     }
 
     /**
@@ -220,7 +669,8 @@ public final class MongoQueueCore {
     }
 
     /**
-     * Ack message and send payload to queue, atomically
+     * Ack message and send payload to queue, atomically. With schema ordered by id message gets new id,
+     * so it is sent first and removed after, failure between these steps leaves both messages in queue.
      *
      * @param message     message to ack received from get(). Should not be null
      * @param payload     payload to send. Should not be null
@@ -240,16 +690,24 @@ public final class MongoQueueCore {
             throw new IllegalArgumentException("id must be an ObjectId");
         }
 
-        final Document newMessage = new Document("$set", new Document("payload", payload)
-                .append("running", false)
-                .append("resetTimestamp", new Date(Long.MAX_VALUE))
-                .append("earliestGet", earliestGet)
-                .append("priority", priority)
-                .append("created", new Date()));
+        final Document fields = buildMessageFields(payload, earliestGet, priority);
+        if (schema.isOrderedById()) {
+            // place in queue is given by _id, message is sent with new one before the old one is removed
+            insertMessage(fields);
+            remove(new Document("_id", id), 1);
+            return;
+        }
 
         //using upsert because if no documents found then the doc was removed (SHOULD ONLY HAPPEN BY SOMEONE MANUALLY) so we can just send
         //collection.update(new Document("_id", id), newMessage, true, false);
-        collection.updateOne(Filters.eq("_id", id), newMessage, new UpdateOptions().upsert(true));
+        if (isServerClock()) {
+            collection.updateOne(Filters.eq("_id", id), buildPipeline(fields, true, false), new UpdateOptions().upsert(true));
+        } else {
+            collection.updateOne(Filters.eq("_id", id), buildUpdate(fields, true, false), new UpdateOptions().upsert(true));
+        }
+        if (leases != null) {
+            leases.removeLease(id);
+        }
     }
 
     /**
@@ -272,7 +730,7 @@ public final class MongoQueueCore {
     }
 
     /**
-     * Requeue message. Same as ackSend() with the same message.
+     * Requeue message. Same as ackSend() with the same message without "id", "claim" and "attempts" fields.
      *
      * @param message     message to requeue received from get(). Should not be null
      * @param earliestGet earliest instant that a call to get() can return message. Should not be null
@@ -290,11 +748,239 @@ public final class MongoQueueCore {
             throw new IllegalArgumentException("id must be an ObjectId");
         }
 
+        // claim and attempts are added to payload by getBatch() and are not part of it
         final Document forRequeue = new Document(message);
         forRequeue.remove("id");
+        forRequeue.remove("claim");
+        forRequeue.remove("attempts");
         ackSend(message, forRequeue, earliestGet, priority);
     }
 
+    /**
+     * Release message back to queue with earliestGet as Now. Same as release() with delay.
+     *
+     * @param message message to release received from get(). Should not be null
+     * @return true if message was released, false if it was removed or claimed by another get()
+     */
+    public boolean release(final Document message) {
+        return release(message, new Date());
+    }
+
+    /**
+     * Release message back to queue by updating only lease and scheduling fields, payload, priority and
+     * created are left untouched. Increments attempts counter of the message.
+     *
+     * @param message     message to release received from get(). Should not be null. If message has claim token it is
+     *                    released only while still claimed with it
+     * @param earliestGet earliest instant that a call to get() can return message. Should not be null
+     * @return true if message was released, false if it was removed or claimed by another get()
+     */
+    public boolean release(final Document message, final Date earliestGet) {
+        return release(message, earliestGet, true);
+    }
+
+    /**
+     * Release message back to queue by updating only lease and scheduling fields.
+     *
+     * @param message      message to release received from get(). Should not be null. If message has claim token it is
+     *                     released only while still claimed with it
+     * @param earliestGet  earliest instant that a call to get() can return message. Should not be null
+     * @param countAttempt whether message was released after failed delivery, false for messages never processed
+     * @return true if message was released, false if it was removed, is not running or claimed by another get()
+     */
+    public boolean release(final Document message, final Date earliestGet, final boolean countAttempt) {
+        Objects.requireNonNull(message);
+        Objects.requireNonNull(earliestGet);
+
+        final Object id = message.get("id");
+        if (id == null || id.getClass() != ObjectId.class) {
+            throw new IllegalArgumentException("id must be an ObjectId");
+        }
+
+        final Document query = new Document("_id", id).append(schema.getRunning(), true);
+        if (message.get("claim") != null) {
+            query.append(schema.getClaim(), message.get("claim"));
+        }
+        if (leases != null) {
+            return leases.release(query, earliestGet, countAttempt);
+        }
+        final Document fields = new Document(schema.getRunning(), false)
+                .append(schema.getResetTimestamp(), new Date(Long.MAX_VALUE))
+                .append(schema.getEarliestGet(), scheduled(earliestGet));
+        if (isServerClock()) {
+            return collection.updateOne(query, buildPipeline(fields, true, countAttempt)).getMatchedCount() == 1;
+        }
+        return collection.updateOne(query, buildUpdate(fields, true, countAttempt)).getMatchedCount() == 1;
+    }
+
+    /**
+     * Release messages back to queue with one update, same as release() for every message
+     *
+     * @param messages    messages received from get(). Should not be null. Message with claim token is released
+     *                    only while still claimed with it
+     * @param earliestGet earliest instant that a call to get() can return messages. Should not be null
+     * @return count of released messages
+     */
+    public long releaseAll(final Collection<Document> messages, final Date earliestGet) {
+        Objects.requireNonNull(messages);
+        Objects.requireNonNull(earliestGet);
+        if (messages.isEmpty()) {
+            return 0;
+        }
+
+        if (leases != null) {
+            return leases.releaseAll(buildClaimedQuery(messages), earliestGet);
+        }
+        final Document fields = new Document(schema.getRunning(), false)
+                .append(schema.getResetTimestamp(), new Date(Long.MAX_VALUE))
+                .append(schema.getEarliestGet(), scheduled(earliestGet));
+        if (isServerClock()) {
+            return collection.updateMany(buildClaimedQuery(messages), buildPipeline(fields, true, true)).getMatchedCount();
+        }
+        return collection.updateMany(buildClaimedQuery(messages), buildUpdate(fields, true, true)).getMatchedCount();
+    }
+
+    /**
+     * Move message to dead letters collection. Message is copied first and then removed from queue,
+     * so after failure between these steps it stays in both collections and moving it again is safe.
+     *
+     * @param message     message received from get(). Should not be null. If message has claim token it is
+     *                    moved only while still claimed with it
+     * @param deadLetters collection for messages given up. Should not be null
+     * @return true if message was moved, false if it was removed or claimed by another get()
+     */
+    public boolean deadLetter(final Document message, final MongoCollection<Document> deadLetters) {
+        Objects.requireNonNull(message);
+        Objects.requireNonNull(deadLetters);
+
+        final Object id = message.get("id");
+        if (id == null || id.getClass() != ObjectId.class) {
+            throw new IllegalArgumentException("id must be an ObjectId");
+        }
+
+        final Document query = new Document("_id", id);
+        if (message.get("claim") != null) {
+            query.append(schema.getClaim(), message.get("claim"));
+        }
+        final Document stored = claimed().find(query).first();
+        if (stored == null) {
+            return false;
+        }
+        stored.remove(schema.getClaim());
+        stored.append(schema.getRunning(), false).append(schema.getDeadLettered(), new Date());
+        deadLetters.replaceOne(new Document("_id", id), stored, new ReplaceOptions().upsert(true));
+
+        return claimed().deleteOne(query).getDeletedCount() == 1;
+    }
+
+    /**
+     * Send messages from dead letters collection back to queue with earliestGet as Now and reset attempts.
+     * Messages keep their priority and id.
+     *
+     * @param deadLetters collection with messages moved by deadLetter(). Should not be null
+     * @param query       query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     *                    invalid {$and: [{...}, {...}]}. Should not be null
+     * @param batchSize   count of messages moved with one write. Should be positive
+     * @return count of messages sent back to queue
+     */
+    public long redrive(final MongoCollection<Document> deadLetters, final Document query, final int batchSize) {
+        Objects.requireNonNull(deadLetters);
+        Objects.requireNonNull(query);
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+
+        final Document completeQuery = new Document();
+        for (final Entry<String, Object> field : query.entrySet()) {
+            completeQuery.append(schema.payloadField(field.getKey()), field.getValue());
+        }
+
+        long count = 0;
+        while (true) {
+            final List<ReplaceOneModel<Document>> writes = new ArrayList<>(batchSize);
+            final List<Object> ids = new ArrayList<>(batchSize);
+            for (final Document message : deadLetters.find(completeQuery).limit(batchSize)) {
+                message.remove(schema.getDeadLettered());
+                message.remove(schema.getAttempts());
+                message.append(schema.getRunning(), false)
+                        .append(schema.getResetTimestamp(), new Date(Long.MAX_VALUE))
+                        .append(schema.getEarliestGet(), new Date());
+                ids.add(message.get("_id"));
+                writes.add(new ReplaceOneModel<>(
+                        new Document("_id", message.get("_id")),
+                        message,
+                        new ReplaceOptions().upsert(true)
+                ));
+            }
+            if (writes.isEmpty()) {
+                return count;
+            }
+            collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+            deadLetters.deleteMany(new Document("_id", new Document("$in", ids)));
+            count += ids.size();
+        }
+    }
+
+    /**
+     * Convert messages stored with another schema to schema of this queue, in collection of messages and
+     * collection of leases. Messages are converted with replace matching whole document as it was read,
+     * so migration may run while queue is used: message changed meanwhile is left as is and converted
+     * by the next call.
+     *
+     * @param from        schema of messages to convert. Should not be null
+     * @param payloadKeys top level payload fields to rename, see {@link MongoQueueSchema#convert}. Should not be null
+     * @param batchSize   count of messages converted with one write. Should be positive
+     * @return count of converted messages
+     */
+    public long migrate(final MongoQueueSchema from, final Map<String, String> payloadKeys, final int batchSize) {
+        long count = migrate(collection, from, payloadKeys, batchSize);
+        if (leases != null) {
+            count += migrate(leases.getLeases(), from, payloadKeys, batchSize);
+        }
+        return count;
+    }
+
+    /**
+     * Convert messages of given collection, like dead letters, same as migrate() of queue collections
+     *
+     * @param target      collection with messages of this queue. Should not be null
+     * @param from        schema of messages to convert. Should not be null
+     * @param payloadKeys top level payload fields to rename, see {@link MongoQueueSchema#convert}. Should not be null
+     * @param batchSize   count of messages converted with one write. Should be positive
+     * @return count of converted messages
+     */
+    public long migrate(final MongoCollection<Document> target, final MongoQueueSchema from,
+                        final Map<String, String> payloadKeys, final int batchSize) {
+        Objects.requireNonNull(target);
+        Objects.requireNonNull(from);
+        Objects.requireNonNull(payloadKeys);
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+        if (from == schema) {
+            return 0;
+        }
+
+        long count = 0;
+        Object lastId = null;
+        while (true) {
+            // scan goes forward by _id, so messages skipped as changed are not read again by this call
+            final Document query = from.versionQuery();
+            if (lastId != null) {
+                query.append("_id", new Document("$gt", lastId));
+            }
+            final List<ReplaceOneModel<Document>> writes = new ArrayList<>(batchSize);
+            for (final Document message : target.find(query).sort(new Document("_id", 1)).limit(batchSize)) {
+                writes.add(new ReplaceOneModel<>(new Document(message), from.convert(message, schema, payloadKeys)));
+                lastId = message.get("_id");
+            }
+            if (writes.isEmpty()) {
+                return count;
+            }
+            count += target.bulkWrite(writes, new BulkWriteOptions().ordered(false)).getModifiedCount();
+        }
+    }
+
     /**
      * Send message to queue with earliestGet as Now and 0.0 priority
      *
@@ -328,14 +1014,124 @@ public final class MongoQueueCore {
             throw new IllegalArgumentException("priority was NaN");
         }
 
-        final Document message = new Document("payload", payload)
-                .append("running", false)
-                .append("resetTimestamp", new Date(Long.MAX_VALUE))
-                .append("earliestGet", earliestGet)
-                .append("priority", priority)
-                .append("created", new Date());
+        insertMessage(buildMessageFields(payload, earliestGet, priority));
+    }
+
+    /**
+     * Send messages to queue with earliestGet as Now and 0.0 priority
+     *
+     * @param payloads payloads. Should not be null or contain nulls
+     */
+    public void sendAll(final Collection<Document> payloads) {
+        sendAll(payloads, new Date(), 0.0);
+    }
+
+    /**
+     * Send messages to queue with one unordered insert. Messages are not inserted atomically,
+     * on failure some of them may be already in queue.
+     *
+     * @param payloads    payloads. Should not be null or contain nulls
+     * @param earliestGet earliest instant that a call to Get() can return messages. Should not be null
+     * @param priority    priority for order out of Get(). 0 is higher priority than 1. Should not be NaN
+     */
+    public void sendAll(final Collection<Document> payloads, final Date earliestGet, final double priority) {
+        Objects.requireNonNull(payloads);
+        Objects.requireNonNull(earliestGet);
+        if (Double.isNaN(priority)) {
+            throw new IllegalArgumentException("priority was NaN");
+        }
+        if (payloads.isEmpty()) {
+            return;
+        }
+
+        if (isServerClock()) {
+            // documents are upserted with fresh ids, as inserted documents can not refer to $$NOW
+            final List<UpdateOneModel<Document>> writes = new ArrayList<>(payloads.size());
+            for (final Document payload : payloads) {
+                writes.add(new UpdateOneModel<>(
+                        new Document("_id", new ObjectId()),
+                        buildPipeline(buildMessageFields(Objects.requireNonNull(payload), earliestGet, priority), false, false),
+                        new UpdateOptions().upsert(true)
+                ));
+            }
+            collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+            return;
+        }
+
+        final List<Document> messages = new ArrayList<>(payloads.size());
+        for (final Document payload : payloads) {
+            messages.add(buildMessageFields(Objects.requireNonNull(payload), earliestGet, priority));
+        }
+
+        collection.insertMany(messages, new InsertManyOptions().ordered(false));
+    }
+
+    /**
+     * @return count of removed messages
+     */
+    private long remove(final Document query, final int max) {
+        if (leases != null) {
+            return leases.remove(query, max);
+        }
+        return collection.deleteMany(query).getDeletedCount();
+    }
+
+    /**
+     * @return collection with claimed messages
+     */
+    private MongoCollection<Document> claimed() {
+        return leases == null ? collection : leases.getLeases();
+    }
+
+    /**
+     * @return query matching running messages, message with claim token only while still claimed with it
+     */
+    private Document buildClaimedQuery(final Collection<Document> messages) {
+        // ids grouped by claim token, messages without token are matched by _id only
+        final Map<Object, List<Object>> idsByClaim = new LinkedHashMap<>();
+        for (final Document message : messages) {
+            final Object id = message.get("id");
+            if (id == null || id.getClass() != ObjectId.class) {
+                throw new IllegalArgumentException("id must be an ObjectId");
+            }
+            idsByClaim.computeIfAbsent(message.get("claim"), claim -> new ArrayList<>()).add(id);
+        }
+
+        final List<Document> groups = new ArrayList<>(idsByClaim.size());
+        for (final Entry<Object, List<Object>> group : idsByClaim.entrySet()) {
+            final Document groupQuery = new Document("_id", new Document("$in", group.getValue()));
+            if (group.getKey() != null) {
+                groupQuery.append(schema.getClaim(), group.getKey());
+            }
+            groups.add(groupQuery);
+        }
 
-        collection.insertOne(message);
+        final Document query = groups.size() == 1 ? groups.get(0) : new Document("$or", groups);
+        return query.append(schema.getRunning(), true);
+    }
+
+    private void insertMessage(final Document fields) {
+        if (isServerClock()) {
+            collection.updateOne(new Document("_id", new ObjectId()), buildPipeline(fields, false, false),
+                    new UpdateOptions().upsert(true));
+            return;
+        }
+        collection.insertOne(fields);
+    }
+
+    /**
+     * @return fields of ready message, with server clock payload is wrapped in $literal for buildPipeline()
+     */
+    private Document buildMessageFields(final Document payload, final Date earliestGet, final double priority) {
+        final Document fields = new Document(schema.getPayload(), isServerClock() ? new Document("$literal", payload) : payload)
+                .append(schema.getRunning(), false)
+                .append(schema.getResetTimestamp(), new Date(Long.MAX_VALUE))
+                .append(schema.getEarliestGet(), scheduled(earliestGet))
+                .append(schema.getPriority(), priority);
+        if (!schema.isOrderedById()) {
+            fields.append(schema.getCreated(), now());
+        }
+        return schema.appendVersion(fields);
     }
 
 }
@@ -0,0 +1,277 @@
+package gaillard.mongo;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Two collection layout of {@link MongoQueueCore}: claimed messages are moved from queue collection to lease
+ * collection and back, so queue collection and its indexes hold only messages ready for get().
+ * <p>
+ * Every move inserts the message into target collection before it is removed from source one, so after a crash
+ * between these steps message is in both collections and never in none. Message present in lease collection
+ * can not be claimed again as its lease insert fails on duplicate _id. Lease left by a crash expires and
+ * resetStuck() moves the message back.
+ */
+final class MongoQueueLeases {
+
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int RESET_BATCH_SIZE = 1000;
+
+    private final MongoCollection<Document> collection;
+    private final MongoCollection<Document> leases;
+    private final MongoQueueSchema schema;
+    private final List<String> messageFields;
+
+    MongoQueueLeases(final MongoCollection<Document> collection, final MongoCollection<Document> leases,
+                     final MongoQueueSchema schema) {
+        this.collection = collection;
+        this.leases = leases;
+        this.schema = schema;
+        // created is _id itself with schema ordered by id
+        this.messageFields = new ArrayList<>(new LinkedHashSet<>(Arrays.asList(
+                "_id", schema.getPayload(), schema.getPriority(), schema.getCreated(), schema.getEarliestGet(),
+                schema.getAttempts(), MongoQueueSchema.VERSION_FIELD
+        )));
+    }
+
+    MongoCollection<Document> getLeases() {
+        return leases;
+    }
+
+    <D> List<D> claim(final Class<D> documentClass, final Document builtQuery, final Document sort,
+                      final Date resetTimestamp, final int max) {
+        final List<RawBsonDocument> candidates = collection.withDocumentClass(RawBsonDocument.class)
+                .find(builtQuery)
+                .sort(sort)
+                .limit(max)
+                .into(new ArrayList<>());
+        if (candidates.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        final BsonObjectId claim = new BsonObjectId();
+        final List<BsonDocument> leased = new ArrayList<>(candidates.size());
+        for (final RawBsonDocument candidate : candidates) {
+            leased.add(toLease(candidate, claim, resetTimestamp));
+        }
+
+        final Set<Integer> rejected = insertLeases(leased);
+        final List<Object> ids = new ArrayList<>(leased.size());
+        for (int i = 0; i < leased.size(); i++) {
+            if (!rejected.contains(i)) {
+                ids.add(leased.get(i).getObjectId("_id").getValue());
+            }
+        }
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // candidate may have been claimed and released meanwhile with new schedule and attempts, or acknowledged,
+        // so leases are rebuilt from messages still matching the ready query
+        final List<RawBsonDocument> ready = collection.withDocumentClass(RawBsonDocument.class)
+                .find(new Document(builtQuery).append("_id", new Document("$in", ids)))
+                .sort(sort)
+                .into(new ArrayList<>());
+        final List<Object> readyIds = new ArrayList<>(ready.size());
+        final List<BsonDocument> claimed = new ArrayList<>(ready.size());
+        final List<WriteModel<BsonDocument>> writes = new ArrayList<>(ready.size());
+        for (final RawBsonDocument message : ready) {
+            final BsonDocument lease = toLease(message, claim, resetTimestamp);
+            readyIds.add(message.getObjectId("_id").getValue());
+            claimed.add(lease);
+            writes.add(new ReplaceOneModel<>(
+                    new BsonDocument("_id", lease.get("_id")).append(schema.getClaim(), claim),
+                    lease
+            ));
+        }
+        if (readyIds.size() < ids.size()) {
+            final List<Object> stale = new ArrayList<>(ids);
+            stale.removeAll(readyIds);
+            leases.deleteMany(new Document("_id", new Document("$in", stale)).append(schema.getClaim(), claim.getValue()));
+        }
+        if (readyIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        leases.withDocumentClass(BsonDocument.class).bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        collection.deleteMany(new Document("_id", new Document("$in", readyIds)));
+
+        final Codec<D> codec = collection.getCodecRegistry().get(documentClass);
+        final List<D> result = new ArrayList<>(claimed.size());
+        for (final BsonDocument lease : claimed) {
+            result.add(codec.decode(new BsonDocumentReader(lease), DecoderContext.builder().build()));
+        }
+        return result;
+    }
+
+    private BsonDocument toLease(final RawBsonDocument message, final BsonObjectId claim, final Date resetTimestamp) {
+        // values of raw document are copied as raw bytes
+        final BsonDocument lease = new BsonDocument();
+        for (final String field : messageFields) {
+            final BsonValue value = message.get(field);
+            if (value != null) {
+                lease.append(field, value);
+            }
+        }
+        return lease.append(schema.getRunning(), BsonBoolean.TRUE)
+                .append(schema.getResetTimestamp(), new BsonDateTime(resetTimestamp.getTime()))
+                .append(schema.getClaim(), claim);
+    }
+
+    /**
+     * @return indexes of leases not inserted because messages are already leased
+     */
+    private Set<Integer> insertLeases(final List<BsonDocument> leased) {
+        try {
+            leases.withDocumentClass(BsonDocument.class).insertMany(leased, new InsertManyOptions().ordered(false));
+            return Collections.emptySet();
+        } catch (final MongoBulkWriteException e) {
+            final Set<Integer> rejected = new HashSet<>();
+            for (final BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+                rejected.add(error.getIndex());
+            }
+            return rejected;
+        }
+    }
+
+    /**
+     * Expired leases are first taken over with claim of this reset, so lease extended or claimed anew meanwhile
+     * is kept with its message. Taken leases stay in lease collection until their messages are moved back, lease
+     * left by a crash between these steps is still expired and is taken over again by the next call.
+     */
+    long resetStuck() {
+        long count = 0;
+        while (true) {
+            final Date now = new Date();
+            final List<Document> expired = leases.find(new Document(schema.getResetTimestamp(), new Document("$lte", now)))
+                    .limit(RESET_BATCH_SIZE)
+                    .into(new ArrayList<>());
+            if (expired.isEmpty()) {
+                return count;
+            }
+
+            final ObjectId reset = new ObjectId();
+            final List<WriteModel<Document>> takeOver = new ArrayList<>(expired.size());
+            final List<Object> ids = new ArrayList<>(expired.size());
+            for (final Document lease : expired) {
+                ids.add(lease.get("_id"));
+                takeOver.add(new UpdateOneModel<>(
+                        new Document("_id", lease.get("_id"))
+                                .append(schema.getClaim(), lease.get(schema.getClaim()))
+                                .append(schema.getResetTimestamp(), new Document("$lte", now)),
+                        new Document("$set", new Document(schema.getClaim(), reset))
+                ));
+            }
+            leases.bulkWrite(takeOver, new BulkWriteOptions().ordered(false));
+
+            final Document taken = new Document("_id", new Document("$in", ids)).append(schema.getClaim(), reset);
+            final List<WriteModel<Document>> writes = new ArrayList<>(expired.size());
+            for (final Document lease : leases.find(taken)) {
+                final Document ready = toReady(lease).append(schema.getAttempts(), attempts(lease) + 1);
+                ready.remove("_id");
+                // message left in queue collection by interrupted move is kept as is
+                writes.add(new UpdateOneModel<>(
+                        new Document("_id", lease.get("_id")),
+                        new Document("$setOnInsert", ready),
+                        new UpdateOptions().upsert(true)
+                ));
+            }
+            if (!writes.isEmpty()) {
+                collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+                count += leases.deleteMany(taken).getDeletedCount();
+            }
+            if (expired.size() < RESET_BATCH_SIZE) {
+                return count;
+            }
+        }
+    }
+
+    boolean release(final Document query, final Date earliestGet, final boolean countAttempt) {
+        final Document lease = leases.find(query).first();
+        if (lease == null) {
+            return false;
+        }
+        final Document ready = toReady(lease).append(schema.getEarliestGet(), earliestGet);
+        if (countAttempt) {
+            ready.append(schema.getAttempts(), attempts(lease) + 1);
+        }
+        collection.replaceOne(new Document("_id", lease.get("_id")), ready, new ReplaceOptions().upsert(true));
+        return leases.deleteOne(query).getDeletedCount() == 1;
+    }
+
+    long releaseAll(final Document claimedQuery, final Date earliestGet) {
+        final List<ReplaceOneModel<Document>> writes = new ArrayList<>();
+        for (final Document lease : leases.find(claimedQuery)) {
+            writes.add(new ReplaceOneModel<>(
+                    new Document("_id", lease.get("_id")),
+                    toReady(lease)
+                            .append(schema.getEarliestGet(), earliestGet)
+                            .append(schema.getAttempts(), attempts(lease) + 1),
+                    new ReplaceOptions().upsert(true)
+            ));
+        }
+        if (writes.isEmpty()) {
+            return 0;
+        }
+        collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        return leases.deleteMany(claimedQuery).getDeletedCount();
+    }
+
+    void removeLease(final Object id) {
+        leases.deleteOne(new Document("_id", id));
+    }
+
+    /**
+     * Remove messages from both collections, so late ack of message moved back by resetStuck() removes it
+     * as with single collection
+     *
+     * @param max count of queried messages, message left in both collections by interrupted move is counted once
+     * @return count of removed messages
+     */
+    long remove(final Document query, final int max) {
+        final long removed = leases.deleteMany(query).getDeletedCount() + collection.deleteMany(query).getDeletedCount();
+        return Math.min(removed, max);
+    }
+
+    private Document toReady(final Document lease) {
+        final Document ready = new Document(lease);
+        ready.remove(schema.getClaim());
+        ready.append(schema.getRunning(), false).append(schema.getResetTimestamp(), new Date(Long.MAX_VALUE));
+        return ready;
+    }
+
+    private int attempts(final Document lease) {
+        final Object attempts = lease.get(schema.getAttempts());
+        return attempts instanceof Number ? ((Number) attempts).intValue() : 0;
+    }
+}
@@ -0,0 +1,221 @@
+package gaillard.mongo;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Names of fields of queue documents.
+ * <p>
+ * {@link #FULL} is the original layout. {@link #COMPACT} uses short names and marks every document with
+ * its version in {@link #VERSION_FIELD}, so documents of both layouts can be told apart while collection
+ * is migrated with {@link #convert(Document, MongoQueueSchema, Map)}. Layout of {@link #orderedById()} has
+ * no created field, messages of the same priority are ordered by their ObjectId.
+ */
+public final class MongoQueueSchema {
+
+    public static final String VERSION_FIELD = "v";
+
+    private static final String ID_FIELD = "_id";
+
+    public static final MongoQueueSchema FULL = new MongoQueueSchema(
+            1, "payload", "running", "resetTimestamp", "earliestGet", "priority", "created", "claim", "attempts",
+            "deadLettered"
+    );
+    public static final MongoQueueSchema COMPACT = new MongoQueueSchema(
+            2, "p", "r", "rt", "eg", "pr", "c", "cl", "a", "dl"
+    );
+    private static final MongoQueueSchema FULL_BY_ID = new MongoQueueSchema(
+            1, "payload", "running", "resetTimestamp", "earliestGet", "priority", ID_FIELD, "claim", "attempts",
+            "deadLettered"
+    );
+    private static final MongoQueueSchema COMPACT_BY_ID = new MongoQueueSchema(
+            2, "p", "r", "rt", "eg", "pr", ID_FIELD, "cl", "a", "dl"
+    );
+
+    private final int version;
+    private final String payload;
+    private final String running;
+    private final String resetTimestamp;
+    private final String earliestGet;
+    private final String priority;
+    private final String created;
+    private final String claim;
+    private final String attempts;
+    private final String deadLettered;
+
+    private MongoQueueSchema(final int version, final String payload, final String running,
+                             final String resetTimestamp, final String earliestGet, final String priority,
+                             final String created, final String claim, final String attempts,
+                             final String deadLettered) {
+        this.version = version;
+        this.payload = payload;
+        this.running = running;
+        this.resetTimestamp = resetTimestamp;
+        this.earliestGet = earliestGet;
+        this.priority = priority;
+        this.created = created;
+        this.claim = claim;
+        this.attempts = attempts;
+        this.deadLettered = deadLettered;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public String getRunning() {
+        return running;
+    }
+
+    public String getResetTimestamp() {
+        return resetTimestamp;
+    }
+
+    public String getEarliestGet() {
+        return earliestGet;
+    }
+
+    public String getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return name of field ordering messages of the same priority, "_id" for {@link #orderedById()} layout
+     */
+    public String getCreated() {
+        return created;
+    }
+
+    /**
+     * Same layout without created field, so get() orders messages by priority and _id
+     * and indexes of get() hold ObjectId instead of separate date
+     */
+    public MongoQueueSchema orderedById() {
+        return version == COMPACT.version ? COMPACT_BY_ID : FULL_BY_ID;
+    }
+
+    public boolean isOrderedById() {
+        return ID_FIELD.equals(created);
+    }
+
+    public String getClaim() {
+        return claim;
+    }
+
+    public String getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return name of field with date of move to dead letters collection
+     */
+    public String getDeadLettered() {
+        return deadLettered;
+    }
+
+    /**
+     * @return name of payload field with given path
+     */
+    public String payloadField(final String path) {
+        return payload + "." + path;
+    }
+
+    /**
+     * Documents of the original layout have no version field, layouts of the same version differ
+     * by presence of created field
+     *
+     * @return query matching documents of this layout
+     */
+    public Document versionQuery() {
+        final Document query = version == FULL.version
+                ? new Document(VERSION_FIELD, new Document("$exists", false))
+                : new Document(VERSION_FIELD, version);
+        final MongoQueueSchema withCreated = version == COMPACT.version ? COMPACT : FULL;
+        return query.append(withCreated.created, new Document("$exists", !isOrderedById()));
+    }
+
+    /**
+     * @return message with version field of this layout if it has one
+     */
+    Document appendVersion(final Document message) {
+        if (version != FULL.version) {
+            message.append(VERSION_FIELD, version);
+        }
+        return message;
+    }
+
+    /**
+     * Convert stored document of this layout to another one
+     *
+     * @param message     document of this layout. Should not be null
+     * @param target      layout of result. Should not be null
+     * @param payloadKeys top level payload fields to rename, name in this layout to name in target layout
+     * @return new document, fields unknown to layout are kept as they are. Created date is left out for layout
+     * ordered by id and is taken from ObjectId for layout with created field
+     */
+    public Document convert(final Document message, final MongoQueueSchema target, final Map<String, String> payloadKeys) {
+        Objects.requireNonNull(message);
+        Objects.requireNonNull(target);
+        Objects.requireNonNull(payloadKeys);
+
+        final Document result = new Document();
+        for (final Map.Entry<String, Object> field : message.entrySet()) {
+            final String name = field.getKey();
+            if (VERSION_FIELD.equals(name) || (!isOrderedById() && name.equals(created) && target.isOrderedById())) {
+                continue;
+            }
+            if (ID_FIELD.equals(name)) {
+                result.append(name, field.getValue());
+            } else if (name.equals(payload) && field.getValue() instanceof Document) {
+                result.append(target.payload, renamePayload((Document) field.getValue(), payloadKeys));
+            } else {
+                result.append(target.rename(name, this), field.getValue());
+            }
+        }
+        if (isOrderedById() && !target.isOrderedById() && message.get(ID_FIELD) instanceof ObjectId) {
+            result.append(target.created, ((ObjectId) message.get(ID_FIELD)).getDate());
+        }
+        return target.appendVersion(result);
+    }
+
+    private String rename(final String name, final MongoQueueSchema source) {
+        if (name.equals(source.running)) {
+            return running;
+        } else if (name.equals(source.resetTimestamp)) {
+            return resetTimestamp;
+        } else if (name.equals(source.earliestGet)) {
+            return earliestGet;
+        } else if (name.equals(source.priority)) {
+            return priority;
+        } else if (name.equals(source.created)) {
+            return created;
+        } else if (name.equals(source.claim)) {
+            return claim;
+        } else if (name.equals(source.attempts)) {
+            return attempts;
+        } else if (name.equals(source.deadLettered)) {
+            return deadLettered;
+        }
+        return name;
+    }
+
+    private static Document renamePayload(final Document payload, final Map<String, String> payloadKeys) {
+        final Document result = new Document();
+        for (final Map.Entry<String, Object> field : payload.entrySet()) {
+            result.append(payloadKeys.getOrDefault(field.getKey(), field.getKey()), field.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return isOrderedById() ? "schema v" + version + " ordered by id" : "schema v" + version;
+    }
+}
@@ -0,0 +1,49 @@
+package net.c0f3.queuebox;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry delay grows twice with every failed attempt up to max delay. Delay is randomly reduced by up to
+ * jitter part of it, so messages failed together are not delivered again together.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+    private final int maxAttempts;
+    private final long baseDelayMills;
+    private final long maxDelayMills;
+    private final double jitter;
+
+    /**
+     * @param maxAttempts    deliveries before message is given up, not positive for unlimited attempts
+     * @param baseDelayMills delay after the first failed attempt
+     * @param maxDelayMills  delay limit
+     * @param jitter         part of delay that is randomized, from 0 to 1
+     */
+    public ExponentialBackoffRetryPolicy(int maxAttempts, long baseDelayMills, long maxDelayMills, double jitter) {
+        if (baseDelayMills < 0 || maxDelayMills < 0) {
+            throw new IllegalArgumentException("delays must not be negative");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be from 0 to 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMills = baseDelayMills;
+        this.maxDelayMills = maxDelayMills;
+        this.jitter = jitter;
+    }
+
+    @Override
+    public long nextDelayMills(int attempts) {
+        if (maxAttempts > 0 && attempts >= maxAttempts) {
+            return GIVE_UP;
+        }
+        int shift = Math.max(0, Math.min(attempts - 1, 62));
+        long delay = baseDelayMills > (maxDelayMills >> shift)
+                ? maxDelayMills
+                : Math.min(maxDelayMills, baseDelayMills << shift);
+        if (jitter > 0 && delay > 0) {
+            delay -= (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+        }
+        return delay;
+    }
+}
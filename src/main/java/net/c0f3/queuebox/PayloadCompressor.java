@@ -0,0 +1,17 @@
+package net.c0f3.queuebox;
+
+/**
+ * Compression of stored message bodies. Name is stored with every compressed body,
+ * so it must not change while compressed messages are still in queue.
+ */
+public interface PayloadCompressor {
+
+    String getName();
+
+    byte[] compress(byte[] data);
+
+    /**
+     * @throws IllegalArgumentException if data is not produced by {@link #compress(byte[])}
+     */
+    byte[] decompress(byte[] data);
+}
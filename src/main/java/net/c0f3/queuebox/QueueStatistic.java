@@ -3,6 +3,8 @@ package net.c0f3.queuebox;
 public interface QueueStatistic {
     void increment(String key);
 
+    default void set(String key, long value) {}
+
     String getValue(String statFindCounter);
 
     class VoidStatistic implements QueueStatistic {
@@ -0,0 +1,19 @@
+package net.c0f3.queuebox;
+
+/**
+ * Decides when failed message is delivered again and when it is given up and moved to dead letters.
+ */
+public interface RetryPolicy {
+
+    long GIVE_UP = -1;
+
+    /**
+     * @param attempts count of failed deliveries of the message including the current one
+     * @return delay in milliseconds before next delivery or {@link #GIVE_UP}
+     */
+    long nextDelayMills(int attempts);
+
+    static RetryPolicy immediately() {
+        return (attempts) -> 0;
+    }
+}
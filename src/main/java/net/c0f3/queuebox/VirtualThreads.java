@@ -0,0 +1,49 @@
+package net.c0f3.queuebox;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Access to virtual threads (JDK 21+) from code compiled for Java 8.
+ * Factory method is looked up by reflection, so on older runtimes virtual threads are just not supported.
+ */
+public final class VirtualThreads {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualThreads.class.getCanonicalName());
+
+    private static final Method NEW_EXECUTOR = lookup();
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * @return executor starting new virtual thread for each task, empty if runtime has no virtual threads
+     */
+    public static Optional<ExecutorService> newPerTaskExecutor() {
+        if (NEW_EXECUTOR == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of((ExecutorService) NEW_EXECUTOR.invoke(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "virtual threads executor can not be created", e);
+            return Optional.empty();
+        }
+    }
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package net.c0f3.queuebox.mongo;
+
+import gaillard.mongo.MongoQueueCore;
+import net.c0f3.queuebox.QueueStatistic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects acknowledged message ids from all workers and removes them with one deleteMany
+ * when batch size is reached or flush period passed.
+ * <p>
+ * Pending acks are lost on crash, so messages are redelivered after reset timeout as with any
+ * other not acknowledged message. Ids added after {@link #close()} are removed synchronously.
+ */
+public class MongoAckAccumulator {
+
+    public static final String STAT_ACK_LAG_MILLS = "ack-lag-mills";
+    public static final String STAT_ACK_FLUSH_COUNTER = "ack-flush-counter";
+
+    private static final Logger LOGGER = Logger.getLogger(MongoAckAccumulator.class.getCanonicalName());
+
+    private static final long CLOSE_TIMEOUT_MILLS = 60000;
+
+    private final MongoQueueCore queueCore;
+    private final int batchSize;
+    private final Supplier<QueueStatistic> statistic;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object lock = new Object();
+    private List<Object> pending = new ArrayList<>();
+    private long oldestPendingMills;
+    private boolean closed = false;
+
+    public MongoAckAccumulator(
+            MongoQueueCore queueCore,
+            int batchSize,
+            long flushMills,
+            Supplier<QueueStatistic> statistic
+    ) {
+        Objects.requireNonNull(queueCore);
+        Objects.requireNonNull(statistic);
+        if (batchSize <= 0 || flushMills <= 0) {
+            throw new IllegalArgumentException("batch size and flush period must be positive");
+        }
+        this.queueCore = queueCore;
+        this.batchSize = batchSize;
+        this.statistic = statistic;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "queuebox-ack");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::safeFlush, flushMills, flushMills, TimeUnit.MILLISECONDS);
+    }
+
+    public void ack(Object id) {
+        boolean accepted = false;
+        boolean full = false;
+        synchronized (lock) {
+            if (!closed) {
+                if (pending.isEmpty()) {
+                    oldestPendingMills = System.currentTimeMillis();
+                }
+                pending.add(id);
+                accepted = true;
+                full = pending.size() == batchSize;
+            }
+        }
+        if (!accepted) {
+            queueCore.ackAll(Collections.singletonList(id));
+        } else if (full) {
+            try {
+                scheduler.execute(this::safeFlush);
+            } catch (RejectedExecutionException ignore) {
+                // closing: ids are flushed by close()
+            }
+        }
+    }
+
+    /**
+     * Remove all pending acks from queue
+     */
+    public void flush() {
+        List<Object> batch;
+        long oldest;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            oldest = oldestPendingMills;
+            pending = new ArrayList<>(batchSize);
+        }
+        for (int from = 0; from < batch.size(); from += batchSize) {
+            queueCore.ackAll(batch.subList(from, Math.min(from + batchSize, batch.size())));
+        }
+        QueueStatistic queueStatistic = statistic.get();
+        queueStatistic.set(STAT_ACK_LAG_MILLS, System.currentTimeMillis() - oldest);
+        queueStatistic.increment(STAT_ACK_FLUSH_COUNTER);
+    }
+
+    /**
+     * Flush pending acks and switch to synchronous acks
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(CLOSE_TIMEOUT_MILLS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void safeFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "acks flush failed, messages will be redelivered after reset timeout", e);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package net.c0f3.queuebox.mongo;
+
+import gaillard.mongo.MongoQueueCore;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Renews leases of all in-flight messages with one update per tick, so messages processed
+ * longer than reset timeout are not given to other consumers while this node is alive.
+ * <p>
+ * Message is renewed not longer than max lease time after it was claimed, so messages never
+ * acknowledged by consumer are still redelivered.
+ */
+public class MongoLeaseHeartbeat {
+
+    private static final Logger LOGGER = Logger.getLogger(MongoLeaseHeartbeat.class.getCanonicalName());
+
+    private final MongoQueueCore queueCore;
+    private final int resetDuration;
+    private final long maxLeaseMills;
+    private final Map<Object, Document> inFlight = new ConcurrentHashMap<>();
+    private final Map<Object, Long> deadlines = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    public MongoLeaseHeartbeat(MongoQueueCore queueCore, int resetDuration, long periodMills, long maxLeaseMills) {
+        Objects.requireNonNull(queueCore);
+        if (periodMills <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        this.queueCore = queueCore;
+        this.resetDuration = resetDuration;
+        this.maxLeaseMills = maxLeaseMills;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "queuebox-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::safeTick, periodMills, periodMills, TimeUnit.MILLISECONDS);
+    }
+
+    public void track(Object id, Object claim) {
+        deadlines.put(id, System.currentTimeMillis() + maxLeaseMills);
+        inFlight.put(id, new Document("id", id).append("claim", claim));
+    }
+
+    public void untrack(Object id) {
+        inFlight.remove(id);
+        deadlines.remove(id);
+    }
+
+    public int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * Extend leases of all tracked messages
+     */
+    public void tick() {
+        long now = System.currentTimeMillis();
+        List<Document> messages = new ArrayList<>(inFlight.size());
+        for (Map.Entry<Object, Document> message : inFlight.entrySet()) {
+            Long deadline = deadlines.get(message.getKey());
+            if (deadline != null && deadline < now) {
+                untrack(message.getKey());
+            } else {
+                messages.add(message.getValue());
+            }
+        }
+        queueCore.extendLeases(messages, resetDuration);
+    }
+
+    public void stop() {
+        scheduler.shutdown();
+        inFlight.clear();
+        deadlines.clear();
+    }
+
+    private void safeTick() {
+        try {
+            tick();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "lease heartbeat failed", e);
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package net.c0f3.queuebox.mongo;
 
+import com.mongodb.MongoCommandException;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.IndexOptions;
+import gaillard.mongo.MongoQueueSchema;
 import org.bson.Document;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class MongoQueueCoreIndexes<T> {
@@ -15,14 +20,36 @@ public class MongoQueueCoreIndexes<T> {
 
     private static final Logger LOGGER = Logger.getLogger(MongoQueueCoreIndexes.class.getCanonicalName());
 
+    private static final String INDEX_NAME_PREFIX = "queuebox-index-";
+
     private final MongoCollection<T> collection;
+    private final boolean partial;
+    private final MongoQueueSchema schema;
 
     public MongoQueueCoreIndexes(MongoCollection<T> mongoCollection) {
+        this(mongoCollection, false);
+    }
+
+    /**
+     * @param partial build get() indexes with partialFilterExpression on running, so claim and release
+     *                of a message update only the index of its current state. Full get() indexes built
+     *                before are dropped when their partial replacement is ready.
+     */
+    public MongoQueueCoreIndexes(MongoCollection<T> mongoCollection, boolean partial) {
+        this(mongoCollection, partial, MongoQueueSchema.FULL);
+    }
+
+    /**
+     * @param schema names of indexed fields
+     */
+    public MongoQueueCoreIndexes(MongoCollection<T> mongoCollection, boolean partial, MongoQueueSchema schema) {
         this.collection = mongoCollection;
+        this.partial = partial;
+        this.schema = Objects.requireNonNull(schema);
     }
 
     private String generateIndexName() {
-        return "queuebox-index-" + UUID.randomUUID().toString();
+        return INDEX_NAME_PREFIX + UUID.randomUUID().toString();
     }
 
     /**
@@ -48,34 +75,78 @@ public class MongoQueueCoreIndexes<T> {
      * @param afterSort  fields in get() call that should be after the sort fields in the index. Should not be null
      */
     public void ensureGetIndex(final Document beforeSort, final Document afterSort) {
+        final Document completeIndex = buildGetIndex(beforeSort, afterSort);
+
+        final Document stuckIndex = new Document(schema.getRunning(), 1).append(schema.getResetTimestamp(), 1);
+        if (partial) {
+            ensureReadyIndex(completeIndex);
+            ensureIndex(new Document(schema.getResetTimestamp(), 1), new Document(schema.getRunning(), true));//for the stuck messages query
+            dropReplacedIndex(completeIndex);
+            dropReplacedIndex(stuckIndex);
+            return;
+        }
+
+        ensureIndex(completeIndex);//main query in Get()
+        ensureIndex(stuckIndex);//for the stuck messages query in Get()
+    }
+
+    /**
+     * Ensure index for get() method only, for collection which never has running messages
+     *
+     * @param beforeSort fields in get() call that should be before the sort fields in the index. Should not be null
+     * @param afterSort  fields in get() call that should be after the sort fields in the index. Should not be null
+     */
+    public void ensureReadyIndex(final Document beforeSort, final Document afterSort) {
+        final Document completeIndex = buildGetIndex(beforeSort, afterSort);
+        if (partial) {
+            ensureReadyIndex(completeIndex);
+            dropReplacedIndex(completeIndex);
+            return;
+        }
+        ensureIndex(completeIndex);
+    }
+
+    /**
+     * Ensure index for the stuck messages query in collection of running messages only
+     */
+    public void ensureLeaseIndex() {
+        ensureIndex(new Document(schema.getResetTimestamp(), 1));
+    }
+
+    private void ensureReadyIndex(final Document completeIndex) {
+        // running is constant within partial index and is left out of its key
+        final Document readyIndex = new Document(completeIndex);
+        readyIndex.remove(schema.getRunning());
+        ensureIndex(readyIndex, new Document(schema.getRunning(), false));//main query in Get(), matched by running:false of the query
+    }
+
+    private Document buildGetIndex(final Document beforeSort, final Document afterSort) {
         Objects.requireNonNull(beforeSort);
         Objects.requireNonNull(afterSort);
 
         //using general rule: equality, sort, range or more equality tests in that order for index
-        final Document completeIndex = new Document("running", 1);
+        final Document completeIndex = new Document(schema.getRunning(), 1);
 
         for (final Map.Entry<String, Object> field : beforeSort.entrySet()) {
             if (!Objects.equals(field.getValue(), 1) && !Objects.equals(field.getValue(), -1)) {
                 throw new IllegalArgumentException("field values must be either 1 or -1");
             }
 
-            completeIndex.append("payload." + field.getKey(), field.getValue());
+            completeIndex.append(schema.payloadField(field.getKey()), field.getValue());
         }
 
-        completeIndex.append("priority", 1).append("created", 1);
+        completeIndex.append(schema.getPriority(), 1).append(schema.getCreated(), 1);
 
         for (final Map.Entry<String, Object> field : afterSort.entrySet()) {
             if (!Objects.equals(field.getValue(), 1) && !Objects.equals(field.getValue(), -1)) {
                 throw new IllegalArgumentException("field values must be either 1 or -1");
             }
 
-            completeIndex.append("payload." + field.getKey(), field.getValue());
+            completeIndex.append(schema.payloadField(field.getKey()), field.getValue());
         }
 
-        completeIndex.append("earliestGet", 1);
-
-        ensureIndex(completeIndex);//main query in Get()
-        ensureIndex(new Document("running", 1).append("resetTimestamp", 1));//for the stuck messages query in Get()
+        completeIndex.append(schema.getEarliestGet(), 1);
+        return completeIndex;
     }
 
     /**
@@ -90,7 +161,7 @@ public class MongoQueueCoreIndexes<T> {
         final Document completeIndex = new Document();
 
         if (includeRunning) {
-            completeIndex.append("running", 1);
+            completeIndex.append(schema.getRunning(), 1);
         }
 
         for (final Map.Entry<String, Object> field : index.entrySet()) {
@@ -98,16 +169,21 @@ public class MongoQueueCoreIndexes<T> {
                 throw new IllegalArgumentException("field values must be either 1 or -1");
             }
 
-            completeIndex.append("payload." + field.getKey(), field.getValue());
+            completeIndex.append(schema.payloadField(field.getKey()), field.getValue());
         }
 
         ensureIndex(completeIndex);
     }
 
     private void ensureIndex(final Document indexDoc) {
+        ensureIndex(indexDoc, null);
+    }
+
+    private void ensureIndex(final Document indexDoc, final Document partialFilter) {
         for (int i = 0; i < INDEX_CREATION_ATTEMPTS; ++i) {
             for (final Document existingIndex : collection.listIndexes()) {
-                if (existingIndex.get("key").equals(indexDoc)) {
+                if (existingIndex.get("key").equals(indexDoc)
+                        && Objects.equals(existingIndex.get("partialFilterExpression"), partialFilter)) {
                     LOGGER.info(String.format(
                             "found just created index %s",
                             existingIndex.get("name")
@@ -121,9 +197,36 @@ public class MongoQueueCoreIndexes<T> {
                     name, i + 1
             ));
             IndexOptions iOpts = new IndexOptions().background(true).name(name);
+            if (partialFilter != null) {
+                iOpts.partialFilterExpression(partialFilter);
+            }
             collection.createIndex(indexDoc, iOpts);
         }
 
         throw new RuntimeException("could not create index after 5 attempts");
     }
+
+    /**
+     * Drop full index built by this class with given key, its partial replacement must be already built
+     */
+    private void dropReplacedIndex(final Document indexDoc) {
+        final List<String> names = new ArrayList<>();
+        for (final Document existingIndex : collection.listIndexes()) {
+            final String name = existingIndex.getString("name");
+            if (existingIndex.get("key").equals(indexDoc)
+                    && !existingIndex.containsKey("partialFilterExpression")
+                    && name != null && name.startsWith(INDEX_NAME_PREFIX)) {
+                names.add(name);
+            }
+        }
+        for (final String name : names) {
+            try {
+                collection.dropIndex(name);
+                LOGGER.info(String.format("dropped index %s replaced by partial index", name));
+            } catch (MongoCommandException e) {
+                // other node dropped it first
+                LOGGER.log(Level.FINE, "index " + name + " was not dropped", e);
+            }
+        }
+    }
 }
@@ -0,0 +1,141 @@
+package net.c0f3.queuebox.mongo;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateOptions;
+import gaillard.mongo.MongoQueueCore;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically returns messages with expired resetTimestamp back to the queue.
+ * <p>
+ * Any number of reapers may be started for the same queue collection, but only the one holding
+ * the lease document in the locks collection does the work. Lease is renewed on every run and
+ * taken over by another reaper when the holder stops renewing it.
+ */
+public class MongoQueueReaper {
+
+    public static final String LOCKS_COLLECTION_SUFFIX = "_locks";
+
+    private static final Logger LOGGER = Logger.getLogger(MongoQueueReaper.class.getCanonicalName());
+
+    private static final String LEASE_ID = "reaper";
+    private static final int LEASE_PERIODS = 3;
+    private static final long STOP_TIMEOUT_MILLS = 5000;
+
+    private final MongoQueueCore queueCore;
+    private final MongoCollection<Document> locks;
+    private final long periodMills;
+    private final ObjectId owner = new ObjectId();
+
+    private ScheduledExecutorService scheduler;
+
+    public MongoQueueReaper(MongoQueueCore queueCore, MongoCollection<Document> locks, long periodMills) {
+        Objects.requireNonNull(queueCore);
+        Objects.requireNonNull(locks);
+        if (periodMills <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        this.queueCore = queueCore;
+        this.locks = locks;
+        this.periodMills = periodMills;
+    }
+
+    /**
+     * Locks collection used for the given queue collection
+     *
+     * @param database       database of the queue collection. Should not be null
+     * @param collectionName queue collection name. Should not be null
+     * @return collection placed near the queue collection
+     */
+    public static MongoCollection<Document> locksFor(MongoDatabase database, String collectionName) {
+        return database.getCollection(collectionName + LOCKS_COLLECTION_SUFFIX);
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "queuebox-reaper-" + owner);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::safeRun, 0, periodMills, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            // running pass must not renew the lease after it was released
+            scheduler.awaitTermination(STOP_TIMEOUT_MILLS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+        try {
+            locks.deleteOne(new Document("_id", LEASE_ID).append("owner", owner));
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "reaper lease was not released", e);
+        }
+    }
+
+    /**
+     * Reset stuck messages if this reaper holds the lease
+     *
+     * @return true if lease is held by this reaper
+     */
+    public boolean runOnce() {
+        if (!tryAcquireLease()) {
+            return false;
+        }
+        long count = queueCore.resetStuck();
+        if (count > 0) {
+            LOGGER.info(String.format("reset %d stuck messages", count));
+        }
+        return true;
+    }
+
+    private void safeRun() {
+        try {
+            runOnce();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "reaper run failed", e);
+        }
+    }
+
+    private boolean tryAcquireLease() {
+        Date now = new Date();
+        Document query = new Document("_id", LEASE_ID).append("$or", Arrays.asList(
+                new Document("owner", owner),
+                new Document("expires", new Document("$lte", now))
+        ));
+        Document update = new Document("$set", new Document("owner", owner)
+                .append("expires", new Date(now.getTime() + periodMills * LEASE_PERIODS)));
+        try {
+            locks.updateOne(query, update, new UpdateOptions().upsert(true));
+            return true;
+        } catch (MongoWriteException e) {
+            // lease document exists and belongs to another live reaper
+            if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                return false;
+            }
+            throw e;
+        }
+    }
+}
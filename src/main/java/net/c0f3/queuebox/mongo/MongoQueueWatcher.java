@@ -0,0 +1,211 @@
+package net.c0f3.queuebox.mongo;
+
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import gaillard.mongo.MongoQueueSchema;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import ru.infon.queuebox.QueueNotificationListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wakes up consumers on new messages using one change stream per queue collection.
+ * <p>
+ * Stream is filtered on server by operation and by destinations of local listeners: inserts and updates
+ * returning message to queue (running set to false). Updates without destination, like stuck messages reset,
+ * wake up all listeners. Change streams require replica set or sharded cluster; while stream can not be opened
+ * listeners are told to poll and watcher retries periodically.
+ */
+public class MongoQueueWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(MongoQueueWatcher.class.getCanonicalName());
+
+    private static final String UPDATED_FIELDS = "updateDescription.updatedFields";
+    private static final long AWAIT_MILLS = 1000;
+    private static final long STOP_TIMEOUT_MILLS = 5000;
+
+    private final MongoCollection<Document> collection;
+    private final long retryMills;
+    private final String payloadField;
+    private final String destinationField;
+    private final String runningField;
+    private final Map<String, QueueNotificationListener> listeners = new ConcurrentHashMap<>();
+    private final AtomicLong listenersVersion = new AtomicLong();
+
+    private Thread thread;
+    private volatile boolean running = false;
+    private volatile boolean active = false;
+
+    public MongoQueueWatcher(MongoCollection<Document> collection, long retryMills) {
+        this(collection, retryMills, MongoQueueSchema.FULL, "destination");
+    }
+
+    /**
+     * @param schema           names of fields of stored messages
+     * @param destinationField name of destination field in payload
+     */
+    public MongoQueueWatcher(
+            MongoCollection<Document> collection,
+            long retryMills,
+            MongoQueueSchema schema,
+            String destinationField
+    ) {
+        Objects.requireNonNull(collection);
+        this.collection = collection;
+        this.retryMills = retryMills;
+        this.payloadField = schema.getPayload();
+        this.destinationField = destinationField;
+        this.runningField = schema.getRunning();
+    }
+
+    public synchronized void watch(String destination, QueueNotificationListener listener) {
+        listeners.put(destination, listener);
+        listenersVersion.incrementAndGet();
+        if (active) {
+            listener.onNotificationsActive(true);
+        }
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this::watchLoop, "queuebox-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        try {
+            thread.join(STOP_TIMEOUT_MILLS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        setActive(false);
+    }
+
+    private void watchLoop() {
+        BsonDocument resumeToken = null;
+        while (running) {
+            long version = listenersVersion.get();
+            List<String> destinations = new ArrayList<>(listeners.keySet());
+            ChangeStreamIterable<Document> stream = collection
+                    .watch(pipeline(destinations))
+                    .maxAwaitTime(AWAIT_MILLS, TimeUnit.MILLISECONDS);
+            if (resumeToken != null) {
+                stream.resumeAfter(resumeToken);
+            }
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = stream.cursor()) {
+                setActive(true);
+                // stream is reopened from the last seen event when listeners changed
+                while (running && version == listenersVersion.get()) {
+                    ChangeStreamDocument<Document> event = cursor.tryNext();
+                    if (event != null) {
+                        notify(event);
+                    }
+                    if (cursor.getResumeToken() != null) {
+                        resumeToken = cursor.getResumeToken();
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "change stream is not available, consumers will poll", e);
+                resumeToken = null;
+                setActive(false);
+                sleepBeforeRetry();
+            }
+        }
+    }
+
+    private void notify(ChangeStreamDocument<Document> event) {
+        String destination = null;
+        if (event.getFullDocument() != null) {
+            destination = destinationOf(event.getFullDocument());
+        } else if (event.getUpdateDescription() != null) {
+            BsonDocument updatedFields = event.getUpdateDescription().getUpdatedFields();
+            if (updatedFields.isDocument(payloadField)
+                    && updatedFields.getDocument(payloadField).isString(destinationField)) {
+                destination = updatedFields.getDocument(payloadField).getString(destinationField).getValue();
+            }
+        }
+        if (destination == null) {
+            listeners.values().forEach(QueueNotificationListener::onReady);
+            return;
+        }
+        QueueNotificationListener listener = listeners.get(destination);
+        if (listener != null) {
+            listener.onReady();
+        }
+    }
+
+    private String destinationOf(Document message) {
+        Object payload = message.get(payloadField);
+        if (payload instanceof Document) {
+            return ((Document) payload).getString(destinationField);
+        }
+        return null;
+    }
+
+    private List<Document> pipeline(List<String> destinations) {
+        String destination = payloadField + "." + destinationField;
+        String fullDocumentDestination = "fullDocument." + destination;
+        String updatedDestination = UPDATED_FIELDS + "." + destination;
+        String updatedRunning = UPDATED_FIELDS + "." + runningField;
+        Document inDestinations = new Document("$in", destinations);
+        Document match = new Document("$or", Arrays.asList(
+                new Document("operationType", "insert")
+                        .append(fullDocumentDestination, inDestinations),
+                new Document("operationType", "update")
+                        .append(updatedRunning, false)
+                        .append("$or", Arrays.asList(
+                                new Document(updatedDestination, inDestinations),
+                                new Document(updatedDestination, new Document("$exists", false))
+                        ))
+        ));
+        Document project = new Document(fullDocumentDestination, 1)
+                .append(updatedDestination, 1)
+                .append(updatedRunning, 1)
+                .append("updateDescription.removedFields", 1)
+                .append("operationType", 1)
+                .append("ns", 1)
+                .append("documentKey", 1);
+        return Collections.unmodifiableList(Arrays.asList(
+                new Document("$match", match),
+                new Document("$project", project)
+        ));
+    }
+
+    private void setActive(boolean value) {
+        if (active == value) {
+            return;
+        }
+        active = value;
+        listeners.values().forEach(listener -> listener.onNotificationsActive(value));
+    }
+
+    private void sleepBeforeRetry() {
+        long until = System.currentTimeMillis() + retryMills;
+        while (running && System.currentTimeMillis() < until) {
+            try {
+                Thread.sleep(Math.min(AWAIT_MILLS, retryMills));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
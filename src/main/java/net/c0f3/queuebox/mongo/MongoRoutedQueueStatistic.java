@@ -18,6 +18,14 @@ public class MongoRoutedQueueStatistic implements QueueStatistic {
         ).incrementAndGet();
     }
 
+    @Override
+    public void set(String key, long value) {
+        values.computeIfAbsent(
+                key,
+                (k)->new AtomicLong(0)
+        ).set(value);
+    }
+
     @Override
     public String getValue(String key) {
         return values.getOrDefault(key,unsetValue).toString();
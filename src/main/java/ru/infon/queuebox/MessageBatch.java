@@ -0,0 +1,113 @@
+package ru.infon.queuebox;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Messages given to {@link QueueBatchConsumer} at once.
+ * Messages not yet acknowledged one by one are acknowledged or failed together with one storage operation.
+ */
+public class MessageBatch<T> extends AbstractList<MessageContainer<T>> {
+
+    private final List<MessageContainer<T>> messages;
+    private final QueuePacketHolder<T> packetHolder;
+    private final Set<MessageContainer<T>> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    MessageBatch(List<MessageContainer<T>> messages, QueuePacketHolder<T> packetHolder) {
+        this.messages = messages;
+        this.packetHolder = packetHolder;
+        this.pending.addAll(messages);
+        for (MessageContainer<T> message : messages) {
+            message.setCallback(
+                    packet -> {
+                        if (complete(packet)) {
+                            packetHolder.ack(packet);
+                        }
+                    },
+                    packet -> {
+                        if (complete(packet)) {
+                            packetHolder.reset(packet);
+                        }
+                    }
+            );
+            message.setLeaseCallback(packetHolder::extendLease);
+        }
+    }
+
+    /**
+     * @return consumer with id of batch consumer handing every message to it as batch of one
+     */
+    static <T> QueueConsumer<T> singles(QueueBatchConsumer<T> batchConsumer, QueuePacketHolder<T> packetHolder) {
+        return new QueueConsumer<T>() {
+            @Override
+            public void onPacket(MessageContainer<T> message) {
+                batchConsumer.onBatch(new MessageBatch<>(Collections.singletonList(message), packetHolder));
+            }
+
+            @Override
+            public String getConsumerId() {
+                return batchConsumer.getConsumerId();
+            }
+
+            @Override
+            public String toString() {
+                return batchConsumer.toString();
+            }
+        };
+    }
+
+    @Override
+    public MessageContainer<T> get(int index) {
+        return messages.get(index);
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    /**
+     * Acknowledge all pending messages of batch
+     */
+    public void done() {
+        List<MessageContainer<T>> completed = completeAll();
+        if (!completed.isEmpty()) {
+            packetHolder.ackAll(completed);
+        }
+    }
+
+    /**
+     * Return all pending messages of batch to queue for retry
+     */
+    public void fail() {
+        List<MessageContainer<T>> completed = completeAll();
+        if (!completed.isEmpty()) {
+            packetHolder.resetAll(completed);
+        }
+    }
+
+    /**
+     * @return count of messages not acknowledged or failed yet
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private synchronized boolean complete(MessageContainer<T> message) {
+        return pending.remove(message);
+    }
+
+    private synchronized List<MessageContainer<T>> completeAll() {
+        List<MessageContainer<T>> completed = new ArrayList<>(pending.size());
+        for (MessageContainer<T> message : messages) {
+            if (pending.remove(message)) {
+                completed.add(message);
+            }
+        }
+        return completed;
+    }
+}
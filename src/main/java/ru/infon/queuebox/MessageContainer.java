@@ -1,6 +1,8 @@
 package ru.infon.queuebox;
 
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static ru.infon.queuebox.QueueBox.PRIORITY_DEFAULT;
 
@@ -11,16 +13,34 @@ import static ru.infon.queuebox.QueueBox.PRIORITY_DEFAULT;
  */
 public class MessageContainer<T> {
 
-    private final T message;
+    private volatile T message;
+    private Supplier<T> decoder;
+    private String source;
+    private String destination;
     private int priority = PRIORITY_DEFAULT;
     private Object id;
+    private Object lease;
+    private int attempts = 0;
     private Consumer<MessageContainer<T>> onDone;
     private Consumer<MessageContainer<T>> onFail;
+    private BiPredicate<MessageContainer<T>, Integer> onExtendLease = (message, seconds) -> false;
 
     public MessageContainer(T message) {
         this.message = message;
     }
 
+    /**
+     * Container decoding message on first {@link #getMessage()} call, so messages which are only
+     * acknowledged, reset or released are never decoded
+     *
+     * @param decoder decodes message from stored form, called at most once
+     */
+    public static <T> MessageContainer<T> lazy(Supplier<T> decoder) {
+        MessageContainer<T> container = new MessageContainer<>((T) null);
+        container.decoder = decoder;
+        return container;
+    }
+
     public void setPriority(int priority) {
         this.priority = priority;
     }
@@ -30,7 +50,24 @@ public class MessageContainer<T> {
     }
 
     public T getMessage() {
-        return message;
+        T result = message;
+        if (result == null && decoder != null) {
+            synchronized (this) {
+                if (message == null && decoder != null) {
+                    message = decoder.get();
+                    decoder = null;
+                }
+                result = message;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return false while lazy container has not decoded its message yet
+     */
+    public boolean isDecoded() {
+        return message != null || decoder == null;
     }
 
     void setCallback(Consumer<MessageContainer<T>> onDone, Consumer<MessageContainer<T>> onFail) {
@@ -38,6 +75,10 @@ public class MessageContainer<T> {
         this.onFail = onFail;
     }
 
+    void setLeaseCallback(BiPredicate<MessageContainer<T>, Integer> onExtendLease) {
+        this.onExtendLease = onExtendLease;
+    }
+
     public void done() {
         onDone.accept(this);
     }
@@ -46,6 +87,17 @@ public class MessageContainer<T> {
         onFail.accept(this);
     }
 
+    /**
+     * Keep message claimed by this consumer for the given time from now,
+     * so long running processing does not make message available to other consumers
+     *
+     * @param seconds lease duration from now
+     * @return false if lease was already lost or storage does not support extension
+     */
+    public boolean extendLease(int seconds) {
+        return onExtendLease.test(this, seconds);
+    }
+
     public Object getId() {
         return id;
     }
@@ -53,4 +105,45 @@ public class MessageContainer<T> {
     public void setId(Object id) {
         this.id = id;
     }
+
+    /**
+     * @return source of fetched message, available without decoding it
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * @return destination of fetched message, available without decoding it
+     */
+    public String getDestination() {
+        return destination;
+    }
+
+    public void setDestination(String destination) {
+        this.destination = destination;
+    }
+
+    public Object getLease() {
+        return lease;
+    }
+
+    public void setLease(Object lease) {
+        this.lease = lease;
+    }
+
+    /**
+     * @return count of previous failed deliveries of this message
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
 }
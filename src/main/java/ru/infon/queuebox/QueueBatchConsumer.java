@@ -0,0 +1,14 @@
+package ru.infon.queuebox;
+
+/**
+ * Consumer receiving fetched messages in batches instead of one by one.
+ * <p>
+ * Batch holds up to queue.batch.max.size messages, waiting for more at most queue.batch.max.wait.mills.
+ * Messages can be acknowledged all at once by {@link MessageBatch#done()} and {@link MessageBatch#fail()}
+ * or one by one by {@link MessageContainer#done()} and {@link MessageContainer#fail()}.
+ * Messages left pending when onBatch() throws are failed.
+ */
+public interface QueueBatchConsumer<T> {
+    void onBatch(MessageBatch<T> batch);
+    String getConsumerId();
+}
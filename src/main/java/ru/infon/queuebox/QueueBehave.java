@@ -3,6 +3,8 @@ package ru.infon.queuebox;
 import net.c0f3.queuebox.QueueBoxContext;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * 06.06.2017
@@ -15,9 +17,60 @@ public interface QueueBehave<T> {
 
     int getFetchLimit();
     void put(MessageContainer<T> event);
+    default void putAll(Collection<MessageContainer<T>> events) {
+        events.forEach(this::put);
+    }
     Collection<MessageContainer<T>> find(QueueConsumer<T> consumer);
+
+    /**
+     * Find at most limit messages for consumer. Storage without limit support finds fetch limit messages.
+     */
+    default Collection<MessageContainer<T>> find(QueueConsumer<T> consumer, int limit) {
+        return find(consumer);
+    }
+
+    /**
+     * Find messages for several consumers at once.
+     * Storage supporting it claims messages for all consumers with one query.
+     *
+     * @param limits maximum count of messages for each consumer
+     * @return found messages by consumer id
+     */
+    default Map<String, Collection<MessageContainer<T>>> findAll(Map<QueueConsumer<T>, Integer> limits) {
+        Map<String, Collection<MessageContainer<T>>> result = new HashMap<>();
+        for (Map.Entry<QueueConsumer<T>, Integer> limit : limits.entrySet()) {
+            result.put(limit.getKey().getConsumerId(), find(limit.getKey(), limit.getValue()));
+        }
+        return result;
+    }
     void remove(MessageContainer<T> packet);
     void reset(MessageContainer<T> packet);
+    default void removeAll(Collection<MessageContainer<T>> packets) {
+        packets.forEach(this::remove);
+    }
+    default void resetAll(Collection<MessageContainer<T>> packets) {
+        packets.forEach(this::reset);
+    }
+
+    /**
+     * Return message which was fetched but never given to consumer back to storage.
+     * Unlike reset() it is not a failed delivery.
+     */
+    default void release(MessageContainer<T> packet) {
+        reset(packet);
+    }
     void setContext(QueueBoxContext context);
+    default boolean extendLease(MessageContainer<T> packet, int seconds) {
+        return false;
+    }
+    default void shutdown() {
+    }
+
+    /**
+     * Subscribe listener to storage notifications about new messages for consumer.
+     * Storage without notifications support does nothing and consumer keeps polling.
+     */
+    default void watch(QueueConsumer<T> consumer, QueueNotificationListener listener) {
+    }
 
 }
@@ -4,7 +4,9 @@ import net.c0f3.queuebox.QueueBoxContext;
 import net.c0f3.queuebox.QueueStatistic;
 import ru.infon.queuebox.common.PropertiesBox;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
@@ -27,9 +29,76 @@ public class QueueBox<T> {
     public static final int PRIORITY_LOW = 10;
     public static final int PRIORITY_DEFAULT = PRIORITY_NORMAL;
 
+    /**
+     * delay after empty fetch, doubled with every next empty fetch up to max delay
+     */
     public static final String PROPERTY_FETCH_DELAY_MILLS = "queue.fetch.delay.mills";
+    public static final String PROPERTY_FETCH_DELAY_MAX_MILLS = "queue.fetch.delay.max.mills";
+    /**
+     * bounds of adaptive count of messages consumer holds at once, both default to queue fetch limit
+     */
+    public static final String PROPERTY_FETCH_LIMIT_MIN = "queue.fetch.limit.min";
+    public static final String PROPERTY_FETCH_LIMIT_MAX = "queue.fetch.limit.max";
+    /**
+     * average handling time above which adaptive fetch limit is halved
+     */
+    public static final String PROPERTY_FETCH_TARGET_LATENCY_MILLS = "queue.fetch.target.latency.mills";
+    /**
+     * count of messages fetched ahead of free handlers, next fetch starts when prefetched count drops
+     * to low watermark (half of prefetch size by default)
+     */
+    public static final String PROPERTY_PREFETCH_SIZE = "queue.fetch.prefetch.size";
+    public static final String PROPERTY_PREFETCH_LOW_WATERMARK = "queue.fetch.prefetch.low.watermark";
+    /**
+     * max count of messages in batch of {@link QueueBatchConsumer}, fetch limit by default
+     */
+    public static final String PROPERTY_BATCH_MAX_SIZE = "queue.batch.max.size";
+    /**
+     * how long not full batch waits for more messages, 0 to hand off fetched messages at once
+     */
+    public static final String PROPERTY_BATCH_MAX_WAIT_MILLS = "queue.batch.max.wait.mills";
+    /**
+     * enables one fetch query for all local consumers instead of fetch loop per consumer
+     */
+    public static final String PROPERTY_FETCH_SHARED = "queue.fetch.shared";
+    /**
+     * max count of messages claimed by one shared fetch
+     */
+    public static final String PROPERTY_FETCH_SHARED_LIMIT = "queue.fetch.shared.limit";
+    /**
+     * random deviation of fetch delays in percents, keeps consumers from polling storage simultaneously
+     */
+    public static final String PROPERTY_FETCH_DELAY_JITTER_PERCENT = "queue.fetch.delay.jitter.percent";
+    /**
+     * fetch delay used while storage notifies consumers about new messages, covers missed notifications
+     */
+    public static final String PROPERTY_NOTIFY_FETCH_DELAY_MILLS = "queue.notify.fetch.delay.mills";
+    /**
+     * enables write-behind producer mode when positive: queue() calls are stored with one insert per batch
+     */
+    public static final String PROPERTY_PRODUCER_BATCH_SIZE = "queue.producer.batch.size";
+    public static final String PROPERTY_PRODUCER_LINGER_MILLS = "queue.producer.linger.mills";
+    public static final String PROPERTY_PRODUCER_BUFFER_SIZE = "queue.producer.buffer.size";
+    /**
+     * how long queue() waits for free space in full producer buffer, 0 to fail immediately
+     */
+    public static final String PROPERTY_PRODUCER_BLOCK_MILLS = "queue.producer.block.mills";
+
+    /**
+     * current delay between empty fetches of consumer, followed by consumer id
+     */
+    public static final String STAT_FETCH_DELAY_MILLS_PREFIX = "fetch-delay-mills.";
+    /**
+     * current fetch limit of consumer, followed by consumer id
+     */
+    public static final String STAT_FETCH_LIMIT_PREFIX = "fetch-limit.";
+
+    private static final int DEFAULT_PRODUCER_LINGER_MILLS = 5;
+    private static final int DEFAULT_PRODUCER_BUFFER_BATCHES = 10;
+    private static final int DEFAULT_PRODUCER_BLOCK_MILLS = 60000;
 
     private QueueEngine<T> queue = null;
+    private volatile QueueProducerBuffer<T> producerBuffer = null;
     private final QueueBoxContext queueBoxContext;
     protected QueueBehave<T> behave = null;
     protected ExecutorService executor = null;
@@ -74,12 +143,31 @@ public class QueueBox<T> {
         Objects.requireNonNull(behave);
         Objects.requireNonNull(executor);
         if (this.queue == null) {
-            this.queue = new QueueEngine<>(properties, behave, executor);
+            this.queue = new QueueEngine<>(properties, behave, executor, queueBoxContext);
+        }
+        int producerBatchSize = properties.tryGetIntProperty(PROPERTY_PRODUCER_BATCH_SIZE, 0);
+        if (producerBatchSize > 0 && this.producerBuffer == null) {
+            this.producerBuffer = new QueueProducerBuffer<>(
+                    queue,
+                    producerBatchSize,
+                    properties.tryGetIntProperty(PROPERTY_PRODUCER_LINGER_MILLS, DEFAULT_PRODUCER_LINGER_MILLS),
+                    properties.tryGetIntProperty(
+                            PROPERTY_PRODUCER_BUFFER_SIZE,
+                            producerBatchSize * DEFAULT_PRODUCER_BUFFER_BATCHES
+                    ),
+                    properties.tryGetIntProperty(PROPERTY_PRODUCER_BLOCK_MILLS, DEFAULT_PRODUCER_BLOCK_MILLS)
+            );
+            this.producerBuffer.start();
         }
         started.set(true);
     }
 
     public void stop() {
+        QueueProducerBuffer<T> buffer = producerBuffer;
+        if (buffer != null) {
+            producerBuffer = null;
+            buffer.close();
+        }
         queue.shutdown();
     }
 
@@ -90,6 +178,13 @@ public class QueueBox<T> {
         executor.submit(() -> queue.registerConsumer(consumer));
     }
 
+    public void subscribe(QueueBatchConsumer<T> consumer) {
+        if (!started.get()) {
+            throw new IllegalStateException("QueueBox not started");
+        }
+        executor.submit(() -> queue.registerBatchConsumer(consumer));
+    }
+
     public void subscribe(String destination, Consumer<T> consumer) {
         subscribe(new QueueConsumer<T>() {
             @Override
@@ -105,24 +200,42 @@ public class QueueBox<T> {
     }
 
     public Future<T> queue(T message) {
+        return queue(message, PRIORITY_DEFAULT);
+    }
+
+    public Future<T> queue(T message, int priority) {
         if (!started.get()) {
             throw new IllegalStateException("QueueBox not started");
         }
+        MessageContainer<T> messageContainer = new MessageContainer<>(message);
+        messageContainer.setPriority(priority);
+        QueueProducerBuffer<T> buffer = producerBuffer;
+        if (buffer != null) {
+            return buffer.add(messageContainer);
+        }
         return executor.submit(() -> {
-            queue.queue(new MessageContainer<>(message));
+            queue.queue(messageContainer);
             return message;
         });
     }
 
-    public Future<T> queue(T message, int priority) {
+    public Future<Collection<T>> queueAll(Collection<T> messages) {
+        return queueAll(messages, PRIORITY_DEFAULT);
+    }
+
+    public Future<Collection<T>> queueAll(Collection<T> messages, int priority) {
         if (!started.get()) {
             throw new IllegalStateException("QueueBox not started");
         }
         return executor.submit(() -> {
-            MessageContainer<T> messageContainer = new MessageContainer<>(message);
-            messageContainer.setPriority(priority);
-            queue.queue(messageContainer);
-            return message;
+            List<MessageContainer<T>> messageContainers = new ArrayList<>(messages.size());
+            for (T message : messages) {
+                MessageContainer<T> messageContainer = new MessageContainer<>(message);
+                messageContainer.setPriority(priority);
+                messageContainers.add(messageContainer);
+            }
+            queue.queueAll(messageContainers);
+            return messages;
         });
     }
 }
@@ -1,15 +1,29 @@
 package ru.infon.queuebox;
 
+import net.c0f3.queuebox.QueueBoxContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 
+import static ru.infon.queuebox.QueueBox.PROPERTY_BATCH_MAX_SIZE;
+import static ru.infon.queuebox.QueueBox.PROPERTY_BATCH_MAX_WAIT_MILLS;
+import static ru.infon.queuebox.QueueBox.PROPERTY_FETCH_DELAY_JITTER_PERCENT;
+import static ru.infon.queuebox.QueueBox.PROPERTY_FETCH_DELAY_MAX_MILLS;
 import static ru.infon.queuebox.QueueBox.PROPERTY_FETCH_DELAY_MILLS;
+import static ru.infon.queuebox.QueueBox.PROPERTY_FETCH_LIMIT_MAX;
+import static ru.infon.queuebox.QueueBox.PROPERTY_FETCH_LIMIT_MIN;
+import static ru.infon.queuebox.QueueBox.PROPERTY_FETCH_TARGET_LATENCY_MILLS;
+import static ru.infon.queuebox.QueueBox.PROPERTY_PREFETCH_LOW_WATERMARK;
+import static ru.infon.queuebox.QueueBox.PROPERTY_PREFETCH_SIZE;
+import static ru.infon.queuebox.QueueBox.STAT_FETCH_DELAY_MILLS_PREFIX;
+import static ru.infon.queuebox.QueueBox.STAT_FETCH_LIMIT_PREFIX;
+import static ru.infon.queuebox.QueueBox.PROPERTY_NOTIFY_FETCH_DELAY_MILLS;
 
 /**
  * 29.03.2017
@@ -17,29 +31,77 @@ import static ru.infon.queuebox.QueueBox.PROPERTY_FETCH_DELAY_MILLS;
  * @author KostaPC
  * 2017 Infon ZED
  */
-class QueueConsumerThread<T> {
+class QueueConsumerThread<T> implements QueueNotificationListener {
 
     private static final Log LOG = LogFactory.getLog(QueueConsumerThread.class);
 
     private static final int DEFAULT_FETCH_DELAY_MILLS = 100;
+    private static final int DEFAULT_NOTIFY_FETCH_DELAY_MILLS = 10000;
+    private static final int DEFAULT_FETCH_DELAY_MAX_MILLS = 2000;
+    private static final int DEFAULT_FETCH_DELAY_JITTER_PERCENT = 20;
+    private static final int DEFAULT_FETCH_TARGET_LATENCY_MILLS = 1000;
 
     private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final QueueBoxContext context;
 
     private final QueueConsumer<T> consumer;
     private final QueuePacketHolder<T> packetHolder;
     private final Semaphore semaphore;
-    private final Timer timer;
+    private final QueueFetchBackoff backoff;
+    private final QueueFetchSizer sizer;
     private final AtomicBoolean runningFlag = new AtomicBoolean(false);
+    private final AtomicBoolean notificationsActive = new AtomicBoolean(false);
+    private final AtomicBoolean wakeupRequested = new AtomicBoolean(false);
+    // fetch is running or scheduled
+    private final AtomicBoolean fetching = new AtomicBoolean(false);
+    private final AtomicBoolean dispatching = new AtomicBoolean(false);
+    private final AtomicReference<ScheduledFetch> scheduledFetch = new AtomicReference<>();
+    // fetched messages not yet given to handlers
+    private final Queue<MessageContainer<T>> prefetched = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger prefetchedCount = new AtomicInteger();
+    private int prefetchSize = 0;
+    private int prefetchLowWatermark;
+    private final QueueBatchConsumer<T> batchConsumer;
+    private int batchMaxSize;
+    private int batchMaxWaitMills = 0;
+    // when dispatch started to wait for not full batch, 0 while not waiting
+    private volatile long batchWaitStartMills = 0;
+    private final AtomicBoolean batchFlushScheduled = new AtomicBoolean(false);
     private int fetchDelayMills = DEFAULT_FETCH_DELAY_MILLS;
+    private int fetchDelayMaxMills = DEFAULT_FETCH_DELAY_MAX_MILLS;
+    private int notifyFetchDelayMills = DEFAULT_NOTIFY_FETCH_DELAY_MILLS;
+    private int fetchDelayJitterPercent = DEFAULT_FETCH_DELAY_JITTER_PERCENT;
 
     QueueConsumerThread(
             Properties properties,
             QueueConsumer<T> consumer,
             QueuePacketHolder<T> packetHolder,
-            ExecutorService executor
+            ExecutorService executor,
+            ScheduledExecutorService scheduler,
+            QueueBoxContext context
+    ) {
+        this(properties, consumer, null, packetHolder, executor, scheduler, context);
+    }
+
+    /**
+     * @param consumer      consumer of messages one by one, its id is used to find messages
+     * @param batchConsumer consumer given messages by batches instead of consumer, null for one by one handling
+     */
+    QueueConsumerThread(
+            Properties properties,
+            QueueConsumer<T> consumer,
+            QueueBatchConsumer<T> batchConsumer,
+            QueuePacketHolder<T> packetHolder,
+            ExecutorService executor,
+            ScheduledExecutorService scheduler,
+            QueueBoxContext context
     ) {
         this.executor = executor;
+        this.scheduler = scheduler;
+        this.context = context;
         this.consumer = consumer;
+        this.batchConsumer = batchConsumer;
         this.packetHolder = packetHolder;
         try {
             fetchDelayMills = Integer.parseInt(
@@ -47,8 +109,80 @@ class QueueConsumerThread<T> {
             );
         } catch (NumberFormatException | NullPointerException ignore) {
         }
-        semaphore = new Semaphore(packetHolder.getFetchLimit());
-        timer = new Timer("QCT_timer_" + consumer.getConsumerId());
+        try {
+            fetchDelayMaxMills = Integer.parseInt(
+                    properties.getProperty(PROPERTY_FETCH_DELAY_MAX_MILLS)
+            );
+        } catch (NumberFormatException | NullPointerException ignore) {
+        }
+        try {
+            notifyFetchDelayMills = Integer.parseInt(
+                    properties.getProperty(PROPERTY_NOTIFY_FETCH_DELAY_MILLS)
+            );
+        } catch (NumberFormatException | NullPointerException ignore) {
+        }
+        try {
+            fetchDelayJitterPercent = Integer.parseInt(
+                    properties.getProperty(PROPERTY_FETCH_DELAY_JITTER_PERCENT)
+            );
+        } catch (NumberFormatException | NullPointerException ignore) {
+        }
+        int fetchLimit = packetHolder.getFetchLimit();
+        int fetchLimitMax = fetchLimit;
+        try {
+            fetchLimitMax = Integer.parseInt(
+                    properties.getProperty(PROPERTY_FETCH_LIMIT_MAX)
+            );
+        } catch (NumberFormatException | NullPointerException ignore) {
+        }
+        // unset bounds default to fetch limit, so setting only one of them still leaves a range to adapt in
+        int fetchLimitMin = Math.min(fetchLimit, fetchLimitMax);
+        try {
+            fetchLimitMin = Integer.parseInt(
+                    properties.getProperty(PROPERTY_FETCH_LIMIT_MIN)
+            );
+        } catch (NumberFormatException | NullPointerException ignore) {
+        }
+        int targetLatencyMills = DEFAULT_FETCH_TARGET_LATENCY_MILLS;
+        try {
+            targetLatencyMills = Integer.parseInt(
+                    properties.getProperty(PROPERTY_FETCH_TARGET_LATENCY_MILLS)
+            );
+        } catch (NumberFormatException | NullPointerException ignore) {
+        }
+        try {
+            prefetchSize = Integer.parseInt(
+                    properties.getProperty(PROPERTY_PREFETCH_SIZE)
+            );
+        } catch (NumberFormatException | NullPointerException ignore) {
+        }
+        prefetchLowWatermark = prefetchSize / 2;
+        try {
+            prefetchLowWatermark = Integer.parseInt(
+                    properties.getProperty(PROPERTY_PREFETCH_LOW_WATERMARK)
+            );
+        } catch (NumberFormatException | NullPointerException ignore) {
+        }
+        batchMaxSize = fetchLimit;
+        try {
+            batchMaxSize = Integer.parseInt(
+                    properties.getProperty(PROPERTY_BATCH_MAX_SIZE)
+            );
+        } catch (NumberFormatException | NullPointerException ignore) {
+        }
+        try {
+            batchMaxWaitMills = Integer.parseInt(
+                    properties.getProperty(PROPERTY_BATCH_MAX_WAIT_MILLS)
+            );
+        } catch (NumberFormatException | NullPointerException ignore) {
+        }
+        if (batchConsumer != null) {
+            // keep fetching until batch is filled
+            prefetchLowWatermark = Math.max(prefetchLowWatermark, batchMaxSize - 1);
+        }
+        sizer = new QueueFetchSizer(fetchLimitMin, fetchLimitMax, fetchLimit, targetLatencyMills);
+        semaphore = new Semaphore(sizer.getMaxLimit());
+        backoff = new QueueFetchBackoff(fetchDelayMills, fetchDelayMaxMills, fetchDelayJitterPercent);
     }
 
     void start() {
@@ -57,78 +191,328 @@ class QueueConsumerThread<T> {
                 consumer
         ));
         runningFlag.set(true);
+        fetching.set(true);
         executor.execute(() -> runTask(this::payload));
     }
 
     void stop() {
         runningFlag.set(false);
+        ScheduledFetch fetch = scheduledFetch.getAndSet(null);
+        if (fetch != null) {
+            fetch.cancel();
+        }
+        releasePrefetched();
+    }
+
+    /**
+     * @return count of messages consumer can take for processing and prefetch right now
+     */
+    int freeCapacity() {
+        int inFlight = sizer.getMaxLimit() - semaphore.availablePermits();
+        return sizer.getLimit() + prefetchSize - inFlight - prefetchedCount.get();
+    }
+
+    /**
+     * @return current delay between empty fetches
+     */
+    long getFetchDelayMills() {
+        return notificationsActive.get() ? notifyFetchDelayMills : backoff.getCurrentDelayMills();
+    }
+
+    @Override
+    public void onReady() {
+        wakeupRequested.set(true);
+        ScheduledFetch fetch = scheduledFetch.getAndSet(null);
+        if (fetch != null) {
+            // scheduled task which does not find itself in scheduledFetch does nothing
+            fetch.cancel();
+            wakeupRequested.set(false);
+            runTask(this::payload);
+        } else {
+            refill();
+        }
+    }
+
+    @Override
+    public void onNotificationsActive(boolean active) {
+        LOG.info(String.format(
+                "notifications %s for %s",
+                active ? "active" : "unavailable, polling", consumer.getConsumerId()
+        ));
+        notificationsActive.set(active);
+        if (!active) {
+            // poll with short delay right now instead of waiting for long notify delay
+            onReady();
+        }
     }
 
-    private Collection<MessageContainer<T>> payload() {
+    private FetchResult<T> payload() {
+        // notifications received from now on may be not seen by this fetch
+        wakeupRequested.set(false);
+        int requested = freeCapacity();
+        if (requested <= 0) {
+            // consumer is full, fetch is started again by refill() when messages are processed
+            return null;
+        }
         try {
-            return packetHolder.fetch(consumer);
+            Collection<MessageContainer<T>> result = packetHolder.fetch(consumer, requested);
+            sizer.onFetched(result.size(), requested);
+            context.getStatistic().set(STAT_FETCH_LIMIT_PREFIX + consumer.getConsumerId(), sizer.getLimit());
+            if (result.size() >= requested) {
+                // full batch means more messages are likely waiting
+                return new FetchResult<>(result, true);
+            }
+            return new FetchResult<>(result, false);
         } catch (Throwable e) {
             LOG.debug(e);
             //noinspection unchecked
-            return Collections.EMPTY_LIST;
+            return new FetchResult<>(Collections.EMPTY_LIST, false);
         }
     }
 
-    private void onComplete(Collection<MessageContainer<T>> result) {
-        if (result.size() > 0) {
-            LOG.info(String.format(
-                    "worker received %d events for consumer %s",
-                    result.size(), consumer.getConsumerId()
-            ));
+    private void onComplete(FetchResult<T> fetchResult) {
+        if (fetchResult == null) {
+            fetching.set(false);
+            refill();
+            return;
+        }
+        Collection<MessageContainer<T>> result = fetchResult.messages;
+        if (!runningFlag.get()) {
+            fetching.set(false);
+            result.forEach(packetHolder::release);
+            return;
         }
-        if (result.size() == 0 && runningFlag.get()) {
-            schedule(() -> runTask(this::payload), fetchDelayMills);
+        if (result.isEmpty()) {
+            scheduleFetch(notificationsActive.get() ? backoff.jitter(notifyFetchDelayMills) : backoff.onEmpty());
+            return;
+        }
+        LOG.info(String.format(
+                "worker received %d events for consumer %s",
+                result.size(), consumer.getConsumerId()
+        ));
+        prefetched.addAll(result);
+        prefetchedCount.addAndGet(result.size());
+        long delay = backoff.onFound();
+        if (fetchResult.full) {
+            fetching.set(false);
+            refill();
         } else {
+            scheduleFetch(delay);
+        }
+        dispatch();
+    }
 
-            Iterator<MessageContainer<T>> it = result.iterator();
-            while (!result.isEmpty()) {
-                if (!it.hasNext()) {
-                    it = result.iterator();
-                }
-                // if consumer has no free threads - process will wait for
-                MessageContainer<T> packet = it.next();
-                try {
-                    semaphore.acquire();
-                    executor.execute(() -> {
-                        LOG.debug(String.format(
-                                "processing message %s with data: \"%s\"",
-                                packet.getId(), packet.getMessage()
-                        ));
-                        packet.setCallback(
-                                packetHolder::ack,
-                                packetHolder::reset
-                        );
-                        if (!safePacketHandling(packet)) {
-                            packetHolder.reset(packet);
-                        }
+    /**
+     * Start next fetch while earlier fetched messages are still processed,
+     * as soon as prefetched messages count drops to low watermark
+     */
+    private void refill() {
+        if (runningFlag.get()
+                && prefetchedCount.get() <= prefetchLowWatermark
+                && freeCapacity() > 0
+                && fetching.compareAndSet(false, true)) {
+            runTask(this::payload);
+        }
+    }
+
+    /**
+     * Hand prefetched messages to handlers while consumer has free permits. Never waits for permits:
+     * handler completion releases its permit and dispatches next message.
+     * Only one thread dispatches messages of consumer at once.
+     */
+    private void dispatch() {
+        if (batchConsumer != null) {
+            dispatchBatches();
+            return;
+        }
+        // re-checked after dispatching flag is cleared, so permit released meanwhile is not missed
+        while (!prefetched.isEmpty()
+                && semaphore.availablePermits() > 0
+                && dispatching.compareAndSet(false, true)) {
+            try {
+                while (!prefetched.isEmpty() && semaphore.tryAcquire()) {
+                    MessageContainer<T> packet = prefetched.poll();
+                    if (packet == null) {
                         semaphore.release();
-                    });
-                    it.remove();
-                } catch (RejectedExecutionException rejected) {
-                    LOG.warn(String.format(
-                            "task {%s} was rejected by threadpool ... will try again later",
-                            packet.getId()
-                    ));
-                    packetHolder.reset(packet);
-                    it.remove();
-                } catch (InterruptedException interrupted) {
-                    LOG.warn(String.format(
-                            "task {%s} cannot be executed due to threads policy ... will try again later",
-                            packet.getId()
+                        break;
+                    }
+                    prefetchedCount.decrementAndGet();
+                    refill();
+                    handOff(packet);
+                }
+            } finally {
+                dispatching.set(false);
+            }
+        }
+    }
+
+    private void handOff(MessageContainer<T> packet) {
+        if (!runningFlag.get()) {
+            semaphore.release();
+            packetHolder.release(packet);
+            return;
+        }
+        long handOffMills = System.currentTimeMillis();
+        try {
+            executor.execute(() -> {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(String.format(
+                            "processing message %s with data: \"%s\"",
+                            packet.getId(), packet.getMessage()
                     ));
+                }
+                packet.setCallback(
+                        packetHolder::ack,
+                        packetHolder::reset
+                );
+                packet.setLeaseCallback(packetHolder::extendLease);
+                if (!safePacketHandling(packet)) {
                     packetHolder.reset(packet);
-                    it.remove();
                 }
+                sizer.onHandled(System.currentTimeMillis() - handOffMills);
+                semaphore.release();
+                dispatch();
+                refill();
+            });
+        } catch (RejectedExecutionException rejected) {
+            LOG.warn(String.format(
+                    "task {%s} was rejected by threadpool ... will try again later",
+                    packet.getId()
+            ));
+            semaphore.release();
+            packetHolder.reset(packet);
+        }
+    }
+
+    /**
+     * Hand prefetched messages to batch consumer by batches of max size. Not full batch is handed off
+     * after max wait for more messages, or at once when consumer can not hold full batch at all.
+     */
+    private void dispatchBatches() {
+        while (!prefetched.isEmpty()
+                && semaphore.availablePermits() > 0
+                && dispatching.compareAndSet(false, true)) {
+            try {
+                while (!prefetched.isEmpty()) {
+                    int available = semaphore.availablePermits();
+                    int wanted = Math.min(prefetchedCount.get(), batchMaxSize);
+                    int size = Math.min(wanted, available);
+                    if (size <= 0) {
+                        break;
+                    }
+                    if (size < wanted && available < sizer.getMaxLimit()) {
+                        // batch is continued when permits are released by batches in processing
+                        break;
+                    }
+                    if (size < batchMaxSize && size == wanted && !batchWaitExpired()) {
+                        break;
+                    }
+                    if (!semaphore.tryAcquire(size)) {
+                        break;
+                    }
+                    List<MessageContainer<T>> packets = new ArrayList<>(size);
+                    MessageContainer<T> packet;
+                    while (packets.size() < size && (packet = prefetched.poll()) != null) {
+                        packets.add(packet);
+                    }
+                    prefetchedCount.addAndGet(-packets.size());
+                    semaphore.release(size - packets.size());
+                    batchWaitStartMills = 0;
+                    refill();
+                    if (!packets.isEmpty()) {
+                        handOffBatch(packets);
+                    }
+                }
+            } finally {
+                dispatching.set(false);
             }
-            LOG.info(String.format(
-                    "processing events done for %s", consumer
+        }
+    }
+
+    /**
+     * @return true if not full batch waited long enough, otherwise schedules dispatch after wait
+     */
+    private boolean batchWaitExpired() {
+        if (batchMaxWaitMills <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (batchWaitStartMills == 0) {
+            batchWaitStartMills = now;
+        }
+        long remaining = batchWaitStartMills + batchMaxWaitMills - now;
+        if (remaining <= 0) {
+            return true;
+        }
+        if (batchFlushScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.schedule(() -> {
+                    batchFlushScheduled.set(false);
+                    dispatch();
+                }, remaining, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // scheduler is shut down with queue
+                batchFlushScheduled.set(false);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handOffBatch(List<MessageContainer<T>> packets) {
+        if (!runningFlag.get()) {
+            semaphore.release(packets.size());
+            packets.forEach(packetHolder::release);
+            return;
+        }
+        long handOffMills = System.currentTimeMillis();
+        try {
+            executor.execute(() -> {
+                LOG.debug(String.format(
+                        "processing batch of %d messages for %s",
+                        packets.size(), consumer.getConsumerId()
+                ));
+                MessageBatch<T> batch = new MessageBatch<>(packets, packetHolder);
+                try {
+                    batchConsumer.onBatch(batch);
+                } catch (Throwable t) {
+                    LOG.error(String.format(
+                            "batch of %d messages handling failed to to exception in consumer: %s... will try again later",
+                            packets.size(),
+                            t.getMessage()
+                    ), t);
+                    batch.fail();
+                }
+                sizer.onHandled(System.currentTimeMillis() - handOffMills);
+                semaphore.release(packets.size());
+                dispatch();
+                refill();
+            });
+        } catch (RejectedExecutionException rejected) {
+            LOG.warn(String.format(
+                    "batch of %d messages was rejected by threadpool ... will try again later",
+                    packets.size()
             ));
-            runTask(this::payload);
+            semaphore.release(packets.size());
+            packetHolder.resetAll(packets);
+        }
+    }
+
+    /**
+     * Return prefetched messages never given to handlers back to storage
+     */
+    private void releasePrefetched() {
+        MessageContainer<T> packet;
+        while ((packet = prefetched.poll()) != null) {
+            prefetchedCount.decrementAndGet();
+            try {
+                packetHolder.release(packet);
+            } catch (Throwable t) {
+                LOG.warn(String.format(
+                        "failed to release message %s, it will be redelivered after lease timeout",
+                        packet.getId()
+                ), t);
+            }
         }
     }
 
@@ -146,27 +530,58 @@ class QueueConsumerThread<T> {
         }
     }
 
-    private void runTask(Supplier<Collection<MessageContainer<T>>> payload) {
+    private void runTask(Supplier<FetchResult<T>> payload) {
         if (runningFlag.get()) {
             CompletableFuture.supplyAsync(payload, executor).thenAccept(this::onComplete);
         }
     }
 
-    private void schedule(Runnable runnable, long delay) {
-        timer.schedule(new LambdaTimerTask(runnable), delay);
+    private void scheduleFetch(long delay) {
+        context.getStatistic().set(STAT_FETCH_DELAY_MILLS_PREFIX + consumer.getConsumerId(), getFetchDelayMills());
+        if (wakeupRequested.getAndSet(false)) {
+            runTask(this::payload);
+            return;
+        }
+        ScheduledFetch fetch = new ScheduledFetch();
+        scheduledFetch.set(fetch);
+        try {
+            fetch.future = scheduler.schedule(() -> {
+                if (scheduledFetch.compareAndSet(fetch, null)) {
+                    runTask(this::payload);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // scheduler is shut down with queue
+            scheduledFetch.compareAndSet(fetch, null);
+            fetching.set(false);
+            return;
+        }
+        if (wakeupRequested.get()) {
+            // notification came while fetch was being scheduled
+            onReady();
+        }
     }
 
-    private static class LambdaTimerTask extends TimerTask {
+    private static class FetchResult<T> {
 
-        private final Runnable runnable;
+        private final Collection<MessageContainer<T>> messages;
+        private final boolean full;
 
-        LambdaTimerTask(Runnable runnable) {
-            this.runnable = runnable;
+        FetchResult(Collection<MessageContainer<T>> messages, boolean full) {
+            this.messages = messages;
+            this.full = full;
         }
+    }
 
-        @Override
-        public void run() {
-            runnable.run();
+    private static class ScheduledFetch {
+
+        private volatile ScheduledFuture<?> future;
+
+        void cancel() {
+            ScheduledFuture<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
         }
     }
 }
@@ -1,14 +1,20 @@
 package ru.infon.queuebox;
 
 
+import net.c0f3.queuebox.QueueBoxContext;
+import net.c0f3.queuebox.QueueStatistic;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import ru.infon.queuebox.common.PropertiesBox;
 
 import java.util.Collection;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 28.03.2017
@@ -20,19 +26,40 @@ public class QueueEngine<T> implements QueuePacketHolder<T> {
 
     private static final Log LOG = LogFactory.getLog(QueueEngine.class);
 
+    private static final long SHUTDOWN_TIMEOUT_MILLS = 5000;
+    private static final int DEFAULT_FETCH_DELAY_MILLS = 100;
+    private static final int DEFAULT_FETCH_DELAY_MAX_MILLS = 2000;
+    private static final int DEFAULT_FETCH_DELAY_JITTER_PERCENT = 20;
+    private static final int DEFAULT_NOTIFY_FETCH_DELAY_MILLS = 10000;
+    private static final int DEFAULT_FETCH_SHARED_LIMIT = 1000;
+
     private final QueueBehave<T> queueBehave;
     private final ExecutorService executor;
     private final Properties properties;
+    private final QueueBoxContext context;
     private Map<String, QueueConsumerThread<T>> listenerThreads = new ConcurrentHashMap<>();
+    // one timer thread for delayed fetches of all consumers, fetches itself run on executor
+    private ScheduledExecutorService scheduler;
+    private QueueSharedFetcher<T> sharedFetcher;
 
     public QueueEngine(
             Properties properties,
             QueueBehave<T> queueBehave,
             ExecutorService executor
+    ) {
+        this(properties, queueBehave, executor, voidContext());
+    }
+
+    public QueueEngine(
+            Properties properties,
+            QueueBehave<T> queueBehave,
+            ExecutorService executor,
+            QueueBoxContext context
     ) {
         this.properties = properties;
         this.queueBehave = queueBehave;
         this.executor = executor;
+        this.context = context;
     }
 
     public void queue(MessageContainer<T> event) {
@@ -40,6 +67,10 @@ public class QueueEngine<T> implements QueuePacketHolder<T> {
         queueBehave.put(event);
     }
 
+    public void queueAll(Collection<MessageContainer<T>> events) {
+        queueBehave.putAll(events);
+    }
+
     @Override
     public int getFetchLimit() {
         return queueBehave.getFetchLimit();
@@ -50,6 +81,15 @@ public class QueueEngine<T> implements QueuePacketHolder<T> {
         return queueBehave.find(consumer);
     }
 
+    @Override
+    public Collection<MessageContainer<T>> fetch(QueueConsumer<T> consumer, int limit) {
+        return queueBehave.find(consumer, limit);
+    }
+
+    public Map<String, Collection<MessageContainer<T>>> fetchAll(Map<QueueConsumer<T>, Integer> limits) {
+        return queueBehave.findAll(limits);
+    }
+
     @Override
     public void ack(MessageContainer<T> packet) {
         queueBehave.remove(packet);
@@ -60,22 +100,143 @@ public class QueueEngine<T> implements QueuePacketHolder<T> {
         queueBehave.reset(packet);
     }
 
+    @Override
+    public void ackAll(Collection<MessageContainer<T>> packets) {
+        queueBehave.removeAll(packets);
+    }
+
+    @Override
+    public void resetAll(Collection<MessageContainer<T>> packets) {
+        queueBehave.resetAll(packets);
+    }
+
+    @Override
+    public void release(MessageContainer<T> packet) {
+        queueBehave.release(packet);
+    }
+
+    @Override
+    public boolean extendLease(MessageContainer<T> packet, int seconds) {
+        return queueBehave.extendLease(packet, seconds);
+    }
+
     public void registerConsumer(QueueConsumer<T> consumer) {
+        registerConsumer(consumer, null);
+    }
+
+    public void registerBatchConsumer(QueueBatchConsumer<T> batchConsumer) {
+        registerConsumer(MessageBatch.singles(batchConsumer, this), batchConsumer);
+    }
+
+    private void registerConsumer(QueueConsumer<T> consumer, QueueBatchConsumer<T> batchConsumer) {
         if (listenerThreads.containsKey(consumer.getConsumerId())) {
             throw new IllegalStateException("consumer with id \"" + consumer.getConsumerId() + "\" already registered");
         }
+        QueueSharedFetcher<T> fetcher = getSharedFetcher();
+        if (fetcher == null) {
+            QueueConsumerThread<T> consumerThread = new QueueConsumerThread<>(
+                    properties,
+                    consumer,
+                    batchConsumer,
+                    this,
+                    executor,
+                    getScheduler(),
+                    context
+            );
+            listenerThreads.put(consumer.getConsumerId(), consumerThread);
+            consumerThread.start();
+            queueBehave.watch(consumer, consumerThread);
+            return;
+        }
         QueueConsumerThread<T> consumerThread = new QueueConsumerThread<>(
                 properties,
                 consumer,
-                this,
-                executor
+                batchConsumer,
+                fetcher.holderFor(consumer),
+                executor,
+                getScheduler(),
+                context
         );
+        // messages are pushed by shared fetcher, consumer checks its buffer only as a fallback
+        consumerThread.onNotificationsActive(true);
         listenerThreads.put(consumer.getConsumerId(), consumerThread);
         consumerThread.start();
+        fetcher.register(consumer, consumerThread);
+        queueBehave.watch(consumer, fetcher);
     }
 
     public void shutdown() {
         listenerThreads.values().forEach(QueueConsumerThread::stop);
+        stopSharedFetcher();
+        shutdownScheduler();
+        queueBehave.shutdown();
+    }
+
+    private static QueueBoxContext voidContext() {
+        QueueBoxContext context = new QueueBoxContext();
+        context.setStatistic(QueueStatistic.voidInstance());
+        return context;
+    }
+
+    private synchronized QueueSharedFetcher<T> getSharedFetcher() {
+        PropertiesBox propertiesBox = new PropertiesBox(properties);
+        if (sharedFetcher == null && propertiesBox.tryGetBooleanProperty(QueueBox.PROPERTY_FETCH_SHARED, false)) {
+            sharedFetcher = new QueueSharedFetcher<>(
+                    this,
+                    executor,
+                    getScheduler(),
+                    propertiesBox.tryGetIntProperty(QueueBox.PROPERTY_FETCH_SHARED_LIMIT, DEFAULT_FETCH_SHARED_LIMIT),
+                    new QueueFetchBackoff(
+                            propertiesBox.tryGetIntProperty(QueueBox.PROPERTY_FETCH_DELAY_MILLS, DEFAULT_FETCH_DELAY_MILLS),
+                            propertiesBox.tryGetIntProperty(
+                                    QueueBox.PROPERTY_FETCH_DELAY_MAX_MILLS,
+                                    DEFAULT_FETCH_DELAY_MAX_MILLS
+                            ),
+                            propertiesBox.tryGetIntProperty(
+                                    QueueBox.PROPERTY_FETCH_DELAY_JITTER_PERCENT,
+                                    DEFAULT_FETCH_DELAY_JITTER_PERCENT
+                            )
+                    ),
+                    propertiesBox.tryGetIntProperty(
+                            QueueBox.PROPERTY_NOTIFY_FETCH_DELAY_MILLS,
+                            DEFAULT_NOTIFY_FETCH_DELAY_MILLS
+                    )
+            );
+        }
+        return sharedFetcher;
+    }
+
+    private synchronized void stopSharedFetcher() {
+        if (sharedFetcher != null) {
+            sharedFetcher.stop();
+            sharedFetcher = null;
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "queuebox-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private synchronized void shutdownScheduler() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        try {
+            if (!scheduler.awaitTermination(SHUTDOWN_TIMEOUT_MILLS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("queue scheduler was not terminated in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
     }
 
 }
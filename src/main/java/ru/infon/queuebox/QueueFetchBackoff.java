@@ -0,0 +1,52 @@
+package ru.infon.queuebox;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Delay between empty fetches: doubled after every empty fetch up to max delay and dropped
+ * to min delay as soon as messages are found. Delays are randomly spread by jitter percent,
+ * so consumers started together do not poll storage at the same moments.
+ */
+class QueueFetchBackoff {
+
+    private final long minDelayMills;
+    private final long maxDelayMills;
+    private final int jitterPercent;
+    private volatile long currentDelayMills;
+
+    QueueFetchBackoff(long minDelayMills, long maxDelayMills, int jitterPercent) {
+        this.minDelayMills = Math.max(minDelayMills, 0);
+        this.maxDelayMills = Math.max(maxDelayMills, this.minDelayMills);
+        this.jitterPercent = Math.max(jitterPercent, 0);
+        this.currentDelayMills = this.minDelayMills;
+    }
+
+    /**
+     * @return delay before next fetch after empty one
+     */
+    long onEmpty() {
+        long delay = currentDelayMills;
+        currentDelayMills = Math.min(Math.max(delay * 2, 1), maxDelayMills);
+        return jitter(delay);
+    }
+
+    /**
+     * @return delay before next fetch after messages were found
+     */
+    long onFound() {
+        currentDelayMills = minDelayMills;
+        return jitter(minDelayMills);
+    }
+
+    long getCurrentDelayMills() {
+        return currentDelayMills;
+    }
+
+    long jitter(long delay) {
+        long spread = delay * jitterPercent / 100;
+        if (spread <= 0) {
+            return delay;
+        }
+        return delay - spread + ThreadLocalRandom.current().nextLong(2 * spread + 1);
+    }
+}
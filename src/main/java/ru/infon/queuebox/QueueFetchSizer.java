@@ -0,0 +1,62 @@
+package ru.infon.queuebox;
+
+/**
+ * Count of messages consumer may hold at once, tuned by additive increase and multiplicative decrease.
+ * <p>
+ * Limit grows by one after every full fetch while average handling time (including wait for a free worker)
+ * stays within target latency, and is halved when it exceeds target. So fast consumers get bigger batches
+ * and slow consumers do not keep claimed messages waiting, which other nodes could process.
+ */
+class QueueFetchSizer {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetLatencyMills;
+    private volatile int limit;
+
+    private long latencySum = 0;
+    private int latencyCount = 0;
+
+    QueueFetchSizer(int minLimit, int maxLimit, int initialLimit, long targetLatencyMills) {
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.targetLatencyMills = targetLatencyMills;
+        this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    int getMaxLimit() {
+        return maxLimit;
+    }
+
+    boolean isAdaptive() {
+        return minLimit < maxLimit;
+    }
+
+    synchronized void onHandled(long latencyMills) {
+        latencySum += latencyMills;
+        latencyCount++;
+    }
+
+    /**
+     * Adjust limit after fetch
+     *
+     * @param fetched   count of fetched messages
+     * @param requested count of messages requested from storage
+     */
+    synchronized void onFetched(int fetched, int requested) {
+        if (!isAdaptive()) {
+            return;
+        }
+        if (latencyCount > 0 && latencySum / latencyCount > targetLatencyMills) {
+            limit = Math.max(minLimit, limit / 2);
+        } else if (requested > 0 && fetched >= requested) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+        latencySum = 0;
+        latencyCount = 0;
+    }
+}
@@ -0,0 +1,18 @@
+package ru.infon.queuebox;
+
+/**
+ * Receives notifications from storage about new messages for a consumer.
+ **/
+public interface QueueNotificationListener {
+
+    /**
+     * messages may be ready for the consumer, fetch should be done without waiting for the next poll
+     */
+    void onReady();
+
+    /**
+     * @param active true while storage delivers notifications, false when they are unavailable and polling is required
+     */
+    void onNotificationsActive(boolean active);
+
+}
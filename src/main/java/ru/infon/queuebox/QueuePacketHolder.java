@@ -11,7 +11,22 @@ public interface QueuePacketHolder<T> {
 
     int getFetchLimit();
     Collection<MessageContainer<T>> fetch(QueueConsumer<T> consumer);
+    default Collection<MessageContainer<T>> fetch(QueueConsumer<T> consumer, int limit) {
+        return fetch(consumer);
+    }
     void ack(MessageContainer<T> packet);
     void reset(MessageContainer<T> packet);
+    default void ackAll(Collection<MessageContainer<T>> packets) {
+        packets.forEach(this::ack);
+    }
+    default void resetAll(Collection<MessageContainer<T>> packets) {
+        packets.forEach(this::reset);
+    }
+    default void release(MessageContainer<T> packet) {
+        reset(packet);
+    }
+    default boolean extendLease(MessageContainer<T> packet, int seconds) {
+        return false;
+    }
 
 }
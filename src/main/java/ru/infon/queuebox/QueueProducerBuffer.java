@@ -0,0 +1,163 @@
+package ru.infon.queuebox;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind buffer for produced messages.
+ * <p>
+ * Messages are collected in bounded buffer and stored with one {@link QueueEngine#queueAll} call when
+ * batch size is reached or the oldest buffered message waits longer than linger time.
+ * Future returned for message completes when its batch is stored.
+ */
+class QueueProducerBuffer<T> {
+
+    private static final Log LOG = LogFactory.getLog(QueueProducerBuffer.class);
+
+    private static final long CLOSE_TIMEOUT_MILLS = 60000;
+    private static final long IDLE_POLL_MILLS = 100;
+
+    private final QueueEngine<T> queue;
+    private final BlockingQueue<PendingMessage<T>> buffer;
+    private final int batchSize;
+    private final long lingerMills;
+    private final long blockMills;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    QueueProducerBuffer(QueueEngine<T> queue, int batchSize, long lingerMills, int bufferSize, long blockMills) {
+        this.queue = queue;
+        this.batchSize = batchSize;
+        this.lingerMills = lingerMills;
+        this.blockMills = blockMills;
+        this.buffer = new ArrayBlockingQueue<>(Math.max(bufferSize, batchSize));
+        this.flusher = new Thread(this::flushLoop, "queuebox-producer");
+        this.flusher.setDaemon(true);
+    }
+
+    void start() {
+        flusher.start();
+    }
+
+    /**
+     * Stop accepting messages and store buffered ones. Futures of messages not stored within close timeout
+     * are completed with {@link RejectedExecutionException}
+     */
+    void close() {
+        running = false;
+        try {
+            flusher.join(CLOSE_TIMEOUT_MILLS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // messages added concurrently with close or left after timeout
+        List<PendingMessage<T>> rest = new ArrayList<>();
+        buffer.drainTo(rest);
+        for (PendingMessage<T> pending : rest) {
+            pending.future.completeExceptionally(new RejectedExecutionException("producer buffer is closed"));
+        }
+    }
+
+    Future<T> add(MessageContainer<T> message) {
+        if (!running) {
+            throw new RejectedExecutionException("producer buffer is closed");
+        }
+        PendingMessage<T> pending = new PendingMessage<>(message);
+        boolean accepted;
+        try {
+            accepted = buffer.offer(pending, blockMills, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            accepted = false;
+        }
+        if (!accepted) {
+            throw new RejectedExecutionException(String.format(
+                    "producer buffer is full (%d messages)", buffer.size()
+            ));
+        }
+        // close() may have drained buffer while offer was blocked, message not taken by flusher or close is failed here
+        if (!running && buffer.remove(pending)) {
+            pending.future.completeExceptionally(new RejectedExecutionException("producer buffer is closed"));
+        }
+        return pending.future;
+    }
+
+    private void flushLoop() {
+        List<PendingMessage<T>> batch = new ArrayList<>(batchSize);
+        while (running || !buffer.isEmpty()) {
+            try {
+                PendingMessage<T> first = buffer.poll(IDLE_POLL_MILLS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMills);
+                while (batch.size() < batchSize) {
+                    long waitNanos = deadline - System.nanoTime();
+                    if (waitNanos <= 0 || !running) {
+                        PendingMessage<T> next = buffer.poll();
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        continue;
+                    }
+                    // bounded wait, so close() does not wait for the whole linger time
+                    PendingMessage<T> next = buffer.poll(
+                            Math.min(waitNanos, TimeUnit.MILLISECONDS.toNanos(IDLE_POLL_MILLS)),
+                            TimeUnit.NANOSECONDS
+                    );
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("producer buffer flusher interrupted");
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingMessage<T>> batch) {
+        List<MessageContainer<T>> messages = new ArrayList<>(batch.size());
+        for (PendingMessage<T> pending : batch) {
+            messages.add(pending.message);
+        }
+        try {
+            queue.queueAll(messages);
+            for (PendingMessage<T> pending : batch) {
+                pending.future.complete(pending.message.getMessage());
+            }
+        } catch (Throwable t) {
+            LOG.error(String.format(
+                    "failed to store batch of %d messages", batch.size()
+            ), t);
+            for (PendingMessage<T> pending : batch) {
+                pending.future.completeExceptionally(t);
+            }
+        }
+    }
+
+    private static class PendingMessage<T> {
+
+        private final MessageContainer<T> message;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        PendingMessage(MessageContainer<T> message) {
+            this.message = message;
+        }
+    }
+}
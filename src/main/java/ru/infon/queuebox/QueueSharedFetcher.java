@@ -0,0 +1,301 @@
+package ru.infon.queuebox;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fetches messages for all local consumers with one storage query and hands them to per-consumer buffers.
+ * <p>
+ * Only consumers with free capacity (free handler permits minus buffered messages) take part in a fetch and
+ * each of them takes at most its free capacity, so a hot destination with old backlog or busy handlers
+ * does not starve other destinations. Consumer threads take messages from their buffers instead of the storage.
+ */
+class QueueSharedFetcher<T> implements QueueNotificationListener {
+
+    private static final Log LOG = LogFactory.getLog(QueueSharedFetcher.class);
+
+    private final QueueEngine<T> queue;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final int maxBatchSize;
+    private final QueueFetchBackoff backoff;
+    private final long notifyFetchDelayMills;
+    private final Map<String, Slot<T>> slots = new ConcurrentHashMap<>();
+    private final AtomicBoolean fetching = new AtomicBoolean(false);
+    private final AtomicBoolean wakeupRequested = new AtomicBoolean(false);
+    private final AtomicBoolean notificationsActive = new AtomicBoolean(false);
+    private volatile boolean running = true;
+    private ScheduledFuture<?> scheduledFetch;
+
+    QueueSharedFetcher(
+            QueueEngine<T> queue,
+            ExecutorService executor,
+            ScheduledExecutorService scheduler,
+            int maxBatchSize,
+            QueueFetchBackoff backoff,
+            long notifyFetchDelayMills
+    ) {
+        this.queue = queue;
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.maxBatchSize = maxBatchSize;
+        this.backoff = backoff;
+        this.notifyFetchDelayMills = notifyFetchDelayMills;
+    }
+
+    /**
+     * @return packet holder serving consumer from its buffer
+     */
+    QueuePacketHolder<T> holderFor(QueueConsumer<T> consumer) {
+        Slot<T> slot = new Slot<>(consumer);
+        slots.put(consumer.getConsumerId(), slot);
+        return new BufferedPacketHolder(slot);
+    }
+
+    void register(QueueConsumer<T> consumer, QueueConsumerThread<T> consumerThread) {
+        slots.get(consumer.getConsumerId()).consumerThread = consumerThread;
+        onReady();
+    }
+
+    void stop() {
+        running = false;
+        cancelScheduledFetch();
+        for (Slot<T> slot : slots.values()) {
+            MessageContainer<T> packet;
+            while ((packet = slot.buffer.poll()) != null) {
+                queue.release(packet);
+            }
+        }
+    }
+
+    @Override
+    public void onReady() {
+        wakeupRequested.set(true);
+        if (running && fetching.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::fetchLoop);
+            } catch (RejectedExecutionException e) {
+                fetching.set(false);
+                LOG.warn("shared fetch was rejected by threadpool ... will try again later");
+                scheduleFetch(false);
+            }
+        }
+    }
+
+    @Override
+    public void onNotificationsActive(boolean active) {
+        notificationsActive.set(active);
+        if (!active) {
+            onReady();
+        }
+    }
+
+    private void fetchLoop() {
+        int count = 0;
+        try {
+            int limit;
+            do {
+                wakeupRequested.set(false);
+                limit = freeCapacity();
+                count = limit > 0 ? safeFetch(limit) : 0;
+                // full batch means more messages are likely waiting
+            } while (running && ((count > 0 && count >= limit) || wakeupRequested.get()));
+        } finally {
+            fetching.set(false);
+        }
+        if (wakeupRequested.get()) {
+            // notification came while loop was finishing
+            onReady();
+        } else {
+            scheduleFetch(count > 0);
+        }
+    }
+
+    private int freeCapacity() {
+        int free = 0;
+        for (Slot<T> slot : slots.values()) {
+            free += Math.max(slot.freeCapacity(), 0);
+        }
+        return Math.min(free, maxBatchSize);
+    }
+
+    /**
+     * @return count of fetched messages
+     */
+    private int safeFetch(int limit) {
+        // every consumer takes at most its own free capacity, so destination with old backlog can not take whole batch
+        Map<QueueConsumer<T>, Integer> limits = new HashMap<>();
+        int left = limit;
+        for (Slot<T> slot : slots.values()) {
+            int free = Math.min(slot.freeCapacity(), left);
+            if (free > 0) {
+                limits.put(slot.consumer, free);
+                left -= free;
+            }
+        }
+        if (limits.isEmpty()) {
+            return 0;
+        }
+        Map<String, Collection<MessageContainer<T>>> found;
+        try {
+            found = queue.fetchAll(limits);
+        } catch (Throwable e) {
+            LOG.debug(e);
+            return 0;
+        }
+        int count = 0;
+        for (Map.Entry<String, Collection<MessageContainer<T>>> entry : found.entrySet()) {
+            count += entry.getValue().size();
+            Slot<T> slot = slots.get(entry.getKey());
+            if (slot == null || !running) {
+                entry.getValue().forEach(queue::release);
+                continue;
+            }
+            slot.buffer.addAll(entry.getValue());
+            slot.wakeup();
+        }
+        if (count > 0) {
+            LOG.info(String.format(
+                    "shared fetch received %d events for %d consumers",
+                    count, found.size()
+            ));
+        }
+        return count;
+    }
+
+    private synchronized void scheduleFetch(boolean found) {
+        if (!running) {
+            return;
+        }
+        cancelScheduledFetch();
+        long delay;
+        if (notificationsActive.get()) {
+            delay = backoff.jitter(notifyFetchDelayMills);
+        } else {
+            delay = found ? backoff.onFound() : backoff.onEmpty();
+        }
+        try {
+            scheduledFetch = scheduler.schedule(this::onReady, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignore) {
+            // scheduler is shut down with queue
+        }
+    }
+
+    private synchronized void cancelScheduledFetch() {
+        if (scheduledFetch != null) {
+            scheduledFetch.cancel(false);
+            scheduledFetch = null;
+        }
+    }
+
+    private static class Slot<T> {
+
+        private final QueueConsumer<T> consumer;
+        private final Queue<MessageContainer<T>> buffer = new ConcurrentLinkedQueue<>();
+        private volatile QueueConsumerThread<T> consumerThread;
+        private volatile boolean drained = false;
+
+        Slot(QueueConsumer<T> consumer) {
+            this.consumer = consumer;
+        }
+
+        int freeCapacity() {
+            QueueConsumerThread<T> thread = consumerThread;
+            if (thread == null) {
+                return 0;
+            }
+            return thread.freeCapacity() - buffer.size();
+        }
+
+        void wakeup() {
+            QueueConsumerThread<T> thread = consumerThread;
+            if (thread != null) {
+                thread.onReady();
+            }
+        }
+    }
+
+    private class BufferedPacketHolder implements QueuePacketHolder<T> {
+
+        private final Slot<T> slot;
+
+        BufferedPacketHolder(Slot<T> slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public int getFetchLimit() {
+            return queue.getFetchLimit();
+        }
+
+        @Override
+        public Collection<MessageContainer<T>> fetch(QueueConsumer<T> consumer) {
+            return fetch(consumer, getFetchLimit());
+        }
+
+        @Override
+        public Collection<MessageContainer<T>> fetch(QueueConsumer<T> consumer, int limit) {
+            List<MessageContainer<T>> result = new ArrayList<>();
+            MessageContainer<T> packet;
+            while (result.size() < limit && (packet = slot.buffer.poll()) != null) {
+                result.add(packet);
+            }
+            if (result.isEmpty()) {
+                if (slot.drained) {
+                    // consumer processed its messages and has free capacity again
+                    slot.drained = false;
+                    onReady();
+                }
+                return Collections.emptyList();
+            }
+            slot.drained = true;
+            return result;
+        }
+
+        @Override
+        public void ack(MessageContainer<T> packet) {
+            queue.ack(packet);
+        }
+
+        @Override
+        public void reset(MessageContainer<T> packet) {
+            queue.reset(packet);
+        }
+
+        @Override
+        public void ackAll(Collection<MessageContainer<T>> packets) {
+            queue.ackAll(packets);
+        }
+
+        @Override
+        public void resetAll(Collection<MessageContainer<T>> packets) {
+            queue.resetAll(packets);
+        }
+
+        @Override
+        public void release(MessageContainer<T> packet) {
+            queue.release(packet);
+        }
+
+        @Override
+        public boolean extendLease(MessageContainer<T> packet, int seconds) {
+            return queue.extendLease(packet, seconds);
+        }
+    }
+}
@@ -23,4 +23,15 @@ public class PropertiesBox extends Properties {
         }
     }
 
+    public boolean tryGetBooleanProperty(String propertyName, boolean defaultValue) {
+        Object value = get(propertyName);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return Boolean.parseBoolean(value.toString());
+    }
+
 }
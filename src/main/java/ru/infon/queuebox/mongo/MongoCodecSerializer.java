@@ -0,0 +1,352 @@
+package ru.infon.queuebox.mongo;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.bson.BsonBinary;
+import org.bson.BsonReader;
+import org.bson.BsonSerializationException;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.Decimal128;
+import ru.infon.queuebox.QueueSerializer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Serializer writing objects to BSON with Jackson token stream, without JsonNode and Document trees.
+ * <p>
+ * {@link #serialize(Object)} returns document holding the object itself, its fields are written by codec
+ * when message is encoded, so collection must use {@link #codecRegistry(CodecRegistry)}.
+ * Stored documents are the same as written by {@link MongoJacksonSerializer}.
+ */
+public class MongoCodecSerializer<T> implements QueueSerializer<T>, Codec<T>, CodecProvider {
+
+    private final Class<T> objectClass;
+    private final ObjectMapper mapper;
+
+    public MongoCodecSerializer(Class<T> objectClass) {
+        this.objectClass = objectClass;
+        this.mapper = new ObjectMapper();
+    }
+
+    /**
+     * @param base registry of collection
+     * @return registry encoding documents returned by {@link #serialize(Object)}
+     */
+    public CodecRegistry codecRegistry(CodecRegistry base) {
+        return CodecRegistries.fromRegistries(CodecRegistries.fromProviders(this), base);
+    }
+
+    @Override
+    public Document serialize(T object) {
+        return new PojoDocument(object, Collections.emptySet());
+    }
+
+    /**
+     * @param skipFields top level fields of serialized object not written to BSON
+     */
+    public Document serialize(T object, Set<String> skipFields) {
+        return new PojoDocument(object, skipFields);
+    }
+
+    @Override
+    public T deserialize(Document document) {
+        if (document instanceof MongoCodecSerializer.PojoDocument) {
+            return objectClass.cast(((PojoDocument) document).object);
+        }
+        return mapper.convertValue(document, objectClass);
+    }
+
+    @Override
+    public Class<T> getObjectClass() {
+        return objectClass;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, T value, EncoderContext encoderContext) {
+        encode(writer, value, Collections.emptySet());
+    }
+
+    /**
+     * @param skipFields top level fields of serialized object not written to BSON
+     */
+    public void encode(BsonWriter writer, T value, Set<String> skipFields) {
+        writer.writeStartDocument();
+        writeObjectFields(writer, value, skipFields);
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public T decode(BsonReader reader, DecoderContext decoderContext) {
+        return decode(reader, Collections.emptySet());
+    }
+
+    /**
+     * @param skipFields top level fields not passed to Jackson
+     */
+    public T decode(BsonReader reader, Set<String> skipFields) {
+        TokenBuffer buffer = new TokenBuffer(mapper, false);
+        try {
+            reader.readStartDocument();
+            buffer.writeStartObject();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                String name = reader.readName();
+                if (skipFields.contains(name)) {
+                    reader.skipValue();
+                    continue;
+                }
+                buffer.writeFieldName(name);
+                readValue(reader, buffer);
+            }
+            buffer.writeEndObject();
+            reader.readEndDocument();
+            return mapper.readValue(buffer.asParser(), objectClass);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Class<T> getEncoderClass() {
+        return objectClass;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <C> Codec<C> get(Class<C> clazz, CodecRegistry registry) {
+        if (clazz == PojoDocument.class) {
+            return (Codec<C>) new PojoDocumentCodec(registry);
+        }
+        if (clazz == Document.class) {
+            return (Codec<C>) new MongoMessageCodec(registry);
+        }
+        if (clazz == objectClass) {
+            return (Codec<C>) this;
+        }
+        return null;
+    }
+
+    private void writeObjectFields(BsonWriter writer, Object value, Set<String> skipFields) {
+        TokenBuffer buffer = new TokenBuffer(mapper, false);
+        try {
+            mapper.writeValue(buffer, value);
+            JsonParser parser = buffer.asParser();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new BsonSerializationException(objectClass.getName() + " is not serialized as object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if (skipFields.contains(name)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                writer.writeName(name);
+                writeToken(parser, writer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeToken(JsonParser parser, BsonWriter writer) throws IOException {
+        switch (parser.currentToken()) {
+            case START_OBJECT:
+                writer.writeStartDocument();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    writer.writeName(parser.getCurrentName());
+                    parser.nextToken();
+                    writeToken(parser, writer);
+                }
+                writer.writeEndDocument();
+                break;
+            case START_ARRAY:
+                writer.writeStartArray();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    writeToken(parser, writer);
+                }
+                writer.writeEndArray();
+                break;
+            case VALUE_STRING:
+                writer.writeString(parser.getText());
+                break;
+            case VALUE_NUMBER_INT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        writer.writeInt32(parser.getIntValue());
+                        break;
+                    case LONG:
+                        writer.writeInt64(parser.getLongValue());
+                        break;
+                    default:
+                        writer.writeDecimal128(new Decimal128(new BigDecimal(parser.getBigIntegerValue())));
+                }
+                break;
+            case VALUE_NUMBER_FLOAT:
+                // jackson serializer stores all floating values as double
+                writer.writeDouble(parser.getDoubleValue());
+                break;
+            case VALUE_TRUE:
+                writer.writeBoolean(true);
+                break;
+            case VALUE_FALSE:
+                writer.writeBoolean(false);
+                break;
+            case VALUE_NULL:
+                writer.writeNull();
+                break;
+            case VALUE_EMBEDDED_OBJECT:
+                Object embedded = parser.getEmbeddedObject();
+                if (embedded == null) {
+                    writer.writeNull();
+                } else if (embedded instanceof byte[]) {
+                    writer.writeBinaryData(new BsonBinary((byte[]) embedded));
+                } else {
+                    throw new BsonSerializationException("can not write " + embedded.getClass().getName());
+                }
+                break;
+            default:
+                throw new BsonSerializationException("unexpected token " + parser.currentToken());
+        }
+    }
+
+    private static void readFields(BsonReader reader, JsonGenerator generator) throws IOException {
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            generator.writeFieldName(reader.readName());
+            readValue(reader, generator);
+        }
+    }
+
+    private static void readValue(BsonReader reader, JsonGenerator generator) throws IOException {
+        BsonType type = reader.getCurrentBsonType();
+        switch (type) {
+            case DOCUMENT:
+                reader.readStartDocument();
+                generator.writeStartObject();
+                readFields(reader, generator);
+                generator.writeEndObject();
+                reader.readEndDocument();
+                break;
+            case ARRAY:
+                reader.readStartArray();
+                generator.writeStartArray();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    readValue(reader, generator);
+                }
+                generator.writeEndArray();
+                reader.readEndArray();
+                break;
+            case STRING:
+                generator.writeString(reader.readString());
+                break;
+            case INT32:
+                generator.writeNumber(reader.readInt32());
+                break;
+            case INT64:
+                generator.writeNumber(reader.readInt64());
+                break;
+            case DOUBLE:
+                generator.writeNumber(reader.readDouble());
+                break;
+            case DECIMAL128:
+                generator.writeNumber(reader.readDecimal128().bigDecimalValue());
+                break;
+            case BOOLEAN:
+                generator.writeBoolean(reader.readBoolean());
+                break;
+            case NULL:
+                reader.readNull();
+                generator.writeNull();
+                break;
+            case DATE_TIME:
+                generator.writeNumber(reader.readDateTime());
+                break;
+            case OBJECT_ID:
+                generator.writeString(reader.readObjectId().toHexString());
+                break;
+            case BINARY:
+                generator.writeBinary(reader.readBinaryData().getData());
+                break;
+            default:
+                throw new BsonSerializationException("can not read " + type);
+        }
+    }
+
+    /**
+     * Payload document holding serialized object, appended fields are written after fields of the object
+     * and replace fields with the same name.
+     */
+    private static class PojoDocument extends Document {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Object object;
+        private final Set<String> skipFields;
+
+        PojoDocument(Object object, Set<String> skipFields) {
+            this.object = object;
+            this.skipFields = skipFields;
+        }
+
+        Set<String> skipFields() {
+            if (skipFields.isEmpty()) {
+                return keySet();
+            }
+            Set<String> result = new HashSet<>(skipFields);
+            result.addAll(keySet());
+            return result;
+        }
+    }
+
+    private class PojoDocumentCodec implements Codec<PojoDocument> {
+
+        private final CodecRegistry registry;
+
+        PojoDocumentCodec(CodecRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public void encode(BsonWriter writer, PojoDocument value, EncoderContext encoderContext) {
+            writer.writeStartDocument();
+            writeObjectFields(writer, value.object, value.skipFields());
+            for (Map.Entry<String, Object> entry : value.entrySet()) {
+                writer.writeName(entry.getKey());
+                if (entry.getValue() == null) {
+                    writer.writeNull();
+                } else {
+                    Codec codec = registry.get(entry.getValue().getClass());
+                    encoderContext.encodeWithChildContext(codec, writer, entry.getValue());
+                }
+            }
+            writer.writeEndDocument();
+        }
+
+        @Override
+        public PojoDocument decode(BsonReader reader, DecoderContext decoderContext) {
+            throw new UnsupportedOperationException("payload is decoded as " + objectClass.getName());
+        }
+
+        @Override
+        public Class<PojoDocument> getEncoderClass() {
+            return PojoDocument.class;
+        }
+    }
+}
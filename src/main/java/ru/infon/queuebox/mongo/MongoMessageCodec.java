@@ -0,0 +1,87 @@
+package ru.infon.queuebox.mongo;
+
+import org.bson.BsonReader;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.util.Map;
+
+/**
+ * Document codec looking up codec of every value by its class in registry.
+ * <p>
+ * Driver {@link DocumentCodec} writes any {@link Map} value entry by entry, so payload documents
+ * with their own codec (see {@link MongoCodecSerializer}) would lose serialized object. Decoding
+ * and id handling are left to {@link DocumentCodec}.
+ */
+class MongoMessageCodec implements CollectibleCodec<Document> {
+
+    private static final String ID_FIELD = "_id";
+
+    private final CodecRegistry registry;
+    private final DocumentCodec documentCodec;
+
+    MongoMessageCodec(CodecRegistry registry) {
+        this.registry = registry;
+        this.documentCodec = new DocumentCodec(registry);
+    }
+
+    @Override
+    public void encode(BsonWriter writer, Document document, EncoderContext encoderContext) {
+        boolean collectible = encoderContext.isEncodingCollectibleDocument() && document.containsKey(ID_FIELD);
+        writer.writeStartDocument();
+        if (collectible) {
+            writer.writeName(ID_FIELD);
+            writeValue(writer, document.get(ID_FIELD), encoderContext);
+        }
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            if (collectible && ID_FIELD.equals(entry.getKey())) {
+                continue;
+            }
+            writer.writeName(entry.getKey());
+            writeValue(writer, entry.getValue(), encoderContext);
+        }
+        writer.writeEndDocument();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void writeValue(BsonWriter writer, Object value, EncoderContext encoderContext) {
+        if (value == null) {
+            writer.writeNull();
+            return;
+        }
+        Codec codec = registry.get(value.getClass());
+        encoderContext.encodeWithChildContext(codec, writer, value);
+    }
+
+    @Override
+    public Document decode(BsonReader reader, DecoderContext decoderContext) {
+        return documentCodec.decode(reader, decoderContext);
+    }
+
+    @Override
+    public Class<Document> getEncoderClass() {
+        return Document.class;
+    }
+
+    @Override
+    public Document generateIdIfAbsentFromDocument(Document document) {
+        return documentCodec.generateIdIfAbsentFromDocument(document);
+    }
+
+    @Override
+    public boolean documentHasId(Document document) {
+        return documentCodec.documentHasId(document);
+    }
+
+    @Override
+    public BsonValue getDocumentId(Document document) {
+        return documentCodec.getDocumentId(document);
+    }
+}
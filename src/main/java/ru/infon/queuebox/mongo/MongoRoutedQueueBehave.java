@@ -2,12 +2,30 @@ package ru.infon.queuebox.mongo;
 
 import com.mongodb.client.MongoCollection;
 import gaillard.mongo.MongoQueueCore;
+import gaillard.mongo.MongoQueueSchema;
+import net.c0f3.queuebox.DeflatePayloadCompressor;
+import net.c0f3.queuebox.ExponentialBackoffRetryPolicy;
+import net.c0f3.queuebox.PayloadCompressor;
 import net.c0f3.queuebox.QueueBoxContext;
+import net.c0f3.queuebox.RetryPolicy;
+import net.c0f3.queuebox.mongo.MongoAckAccumulator;
+import net.c0f3.queuebox.mongo.MongoLeaseHeartbeat;
+import net.c0f3.queuebox.mongo.MongoQueueWatcher;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
 import ru.infon.queuebox.*;
 import ru.infon.queuebox.common.PropertiesBox;
 
 import java.util.*;
+import java.util.function.Function;
 
 /**
  * 06.06.2017
@@ -17,23 +35,118 @@ import java.util.*;
  **/
 public class MongoRoutedQueueBehave<T extends RoutedMessage> implements QueueBehave<T> {
 
+    private static final Log LOG = LogFactory.getLog(MongoRoutedQueueBehave.class);
+
     private static final String FIELD_SOURCE = "source";
     private static final String FIELD_DESTINATION = "destination";
+    private static final String FIELD_COMPACT_SOURCE = "_s";
+    private static final String FIELD_COMPACT_DESTINATION = "_d";
     private static final String FIELD_ID = "id";
+    private static final String FIELD_CLAIM = "claim";
+    private static final String FIELD_ATTEMPTS = "attempts";
+    private static final String FIELD_RAW_ID = "_id";
+    private static final String FIELD_BODY = "_body";
+    private static final String FIELD_COMPRESSION = "_compression";
+    private static final Set<String> ROUTING_FIELDS = new HashSet<>(Arrays.asList(FIELD_SOURCE, FIELD_DESTINATION));
+    private static final Set<String> COMPACT_ROUTING_FIELDS = new HashSet<>(Arrays.asList(
+            FIELD_SOURCE, FIELD_DESTINATION, FIELD_COMPACT_SOURCE, FIELD_COMPACT_DESTINATION
+    ));
+    private static final DocumentCodec PAYLOAD_CODEC = new DocumentCodec();
 
     public static final String PROPERTY_FETCH_LIMIT = "queue.fetch.limit";
     public static final String PROPERTY_RESET_TIMEOUT = "queue.message.timeout";
+    /**
+     * delay before failed message may be fetched again, doubled with every next failure
+     */
+    public static final String PROPERTY_RESET_DELAY_MILLS = "queue.message.reset.delay.mills";
+    public static final String PROPERTY_RESET_MAX_DELAY_MILLS = "queue.message.reset.max.delay.mills";
+    /**
+     * failed deliveries before message is moved to dead letters, not positive for unlimited
+     */
+    public static final String PROPERTY_RETRY_MAX_ATTEMPTS = "queue.retry.max.attempts";
+    /**
+     * enables asynchronous acks removed with one delete per batch when positive
+     */
+    public static final String PROPERTY_ACK_BATCH_SIZE = "queue.ack.batch.size";
+    public static final String PROPERTY_ACK_FLUSH_MILLS = "queue.ack.flush.mills";
+    /**
+     * wake up consumers with change stream notifications, requires replica set
+     */
+    public static final String PROPERTY_NOTIFY_ENABLED = "queue.notify.enabled";
+    public static final String PROPERTY_NOTIFY_RETRY_MILLS = "queue.notify.retry.mills";
+    /**
+     * renew leases of in-flight messages with this period when positive, should be less than message timeout
+     */
+    public static final String PROPERTY_HEARTBEAT_MILLS = "queue.lease.heartbeat.mills";
+    public static final String PROPERTY_LEASE_MAX_SEC = "queue.lease.max.seconds";
+    /**
+     * write payloads with streaming BSON codec instead of converting them to documents
+     */
+    public static final String PROPERTY_SERIALIZER_CODEC = "queue.serializer.codec";
+    /**
+     * keep fetched payloads as raw BSON and decode them on first MessageContainer.getMessage()
+     */
+    public static final String PROPERTY_DECODE_LAZY = "queue.message.decode.lazy";
+    /**
+     * store message body as BSON binary beside routing fields instead of expanded payload document
+     */
+    public static final String PROPERTY_PAYLOAD_BINARY = "queue.payload.binary";
+    /**
+     * binary body of at least this size in bytes is compressed, negative to never compress
+     */
+    public static final String PROPERTY_PAYLOAD_COMPRESS_THRESHOLD = "queue.payload.compress.threshold";
+    /**
+     * index only ready messages for fetch and only running messages for reset of stuck ones,
+     * full indexes built before are replaced
+     */
+    public static final String PROPERTY_INDEX_PARTIAL = "queue.index.partial";
+    /**
+     * set and compare created, earliestGet and resetTimestamp with $$NOW of server instead of local clock,
+     * needs MongoDB 4.2+ and falls back to local clock on older servers
+     */
+    public static final String PROPERTY_CLOCK_SERVER = "queue.clock.server";
+    /**
+     * store messages with short field names and schema version, see {@link MongoQueueSchema#COMPACT};
+     * messages stored before are converted with {@link #migrateSchema()}
+     */
+    public static final String PROPERTY_SCHEMA_COMPACT = "queue.schema.compact";
+    /**
+     * order messages of the same priority by ObjectId instead of created field, which is not stored,
+     * see {@link MongoQueueSchema#orderedById()}. Messages stored with the other ordering, also after
+     * switching it off, are converted with {@link #migrateSchema()}
+     */
+    public static final String PROPERTY_ORDER_ID = "queue.order.id";
 
     private static final int DEFAULT_FETCH_LIMIT = 100;
     private static final int DEFAULT_RESET_TIMEOUT_SEC = 5 * 60;
-    private static final int RETRY_IMMEDIATELY = 0;
-    private static final int NO_WAIT_FOR_RETRY = 0;
+    private static final int DEFAULT_ACK_FLUSH_MILLS = 100;
+    private static final int DEFAULT_NOTIFY_RETRY_MILLS = 30000;
+    private static final int DEFAULT_LEASE_MAX_SEC = 60 * 60;
+    private static final int DEFAULT_RESET_MAX_DELAY_MILLS = 5 * 60 * 1000;
+    private static final double DEFAULT_RETRY_JITTER = 0.2;
+    private static final int REDRIVE_BATCH_SIZE = 1000;
+    private static final int MIGRATE_BATCH_SIZE = 1000;
+    private static final int DEFAULT_PAYLOAD_COMPRESS_THRESHOLD = 1024;
 
     public static final String STAT_FIND_COUNTER = "finds-counter";
+    public static final String STAT_DEAD_LETTER_COUNTER = "dead-letters-counter";
 
     private final QueueSerializer<T> serializer;
+    private final MongoCodecSerializer<T> codecSerializer;
+    private final boolean decodeLazy;
+    private final boolean payloadBinary;
+    private final int compressThreshold;
+    private PayloadCompressor compressor = new DeflatePayloadCompressor();
     private final MongoQueueCore mongoQueueCore;
+    private final String fieldSource;
+    private final String fieldDestination;
+    private final Set<String> routingFields;
+    private final MongoAckAccumulator ackAccumulator;
+    private final MongoQueueWatcher watcher;
+    private final MongoLeaseHeartbeat heartbeat;
     private QueueBoxContext context;
+    private RetryPolicy retryPolicy;
+    private MongoCollection<Document> deadLetters;
 
     private int fetchLimit = DEFAULT_FETCH_LIMIT;
     private int resetTimeout = DEFAULT_RESET_TIMEOUT_SEC;
@@ -43,13 +156,188 @@ public class MongoRoutedQueueBehave<T extends RoutedMessage> implements QueueBeh
             PropertiesBox properties,
             Class<T> packetClass
     ) {
-        this.serializer = new MongoJacksonSerializer<>(packetClass);
-        this.mongoQueueCore = new MongoQueueCore(collection);
+        this(collection, null, properties, packetClass);
+    }
+
+    /**
+     * @param leases collection claimed messages are moved to while processed, null to mark them as running
+     *               in collection of messages
+     */
+    public MongoRoutedQueueBehave(
+            MongoCollection<Document> collection,
+            MongoCollection<Document> leases,
+            PropertiesBox properties,
+            Class<T> packetClass
+    ) {
+        if (properties.tryGetBooleanProperty(PROPERTY_SERIALIZER_CODEC, false)) {
+            MongoCodecSerializer<T> codecSerializer = new MongoCodecSerializer<>(packetClass);
+            collection = collection.withCodecRegistry(codecSerializer.codecRegistry(collection.getCodecRegistry()));
+            this.serializer = codecSerializer;
+            this.codecSerializer = codecSerializer;
+        } else {
+            this.serializer = new MongoJacksonSerializer<>(packetClass);
+            this.codecSerializer = null;
+        }
+        this.decodeLazy = properties.tryGetBooleanProperty(PROPERTY_DECODE_LAZY, false);
+        this.payloadBinary = properties.tryGetBooleanProperty(PROPERTY_PAYLOAD_BINARY, false);
+        this.compressThreshold = properties.tryGetIntProperty(
+                PROPERTY_PAYLOAD_COMPRESS_THRESHOLD,
+                DEFAULT_PAYLOAD_COMPRESS_THRESHOLD
+        );
+        MongoQueueSchema schema = schemaOf(properties);
+        this.fieldSource = sourceField(schema);
+        this.fieldDestination = destinationField(schema);
+        // routing fields of serialized message are left out of compact payload
+        this.routingFields = isCompact(schema) ? COMPACT_ROUTING_FIELDS : ROUTING_FIELDS;
+        this.mongoQueueCore = new MongoQueueCore(
+                collection,
+                leases,
+                schema,
+                properties.tryGetBooleanProperty(PROPERTY_INDEX_PARTIAL, false),
+                properties.tryGetBooleanProperty(PROPERTY_CLOCK_SERVER, false)
+        );
+        if (properties.tryGetBooleanProperty(PROPERTY_CLOCK_SERVER, false) && !mongoQueueCore.isServerClock()) {
+            LOG.warn("server clock is not supported by server or lease collection ... using local clock");
+        }
         Document indexDocument = new Document();
-        indexDocument.append(FIELD_DESTINATION, 1);
+        indexDocument.append(fieldDestination, 1);
         mongoQueueCore.ensureGetIndex(indexDocument);
         this.fetchLimit = properties.tryGetIntProperty(PROPERTY_FETCH_LIMIT, DEFAULT_FETCH_LIMIT);
         this.resetTimeout = properties.tryGetIntProperty(PROPERTY_RESET_TIMEOUT, DEFAULT_RESET_TIMEOUT_SEC);
+        this.retryPolicy = new ExponentialBackoffRetryPolicy(
+                properties.tryGetIntProperty(PROPERTY_RETRY_MAX_ATTEMPTS, 0),
+                properties.tryGetIntProperty(PROPERTY_RESET_DELAY_MILLS, 0),
+                properties.tryGetIntProperty(PROPERTY_RESET_MAX_DELAY_MILLS, DEFAULT_RESET_MAX_DELAY_MILLS),
+                DEFAULT_RETRY_JITTER
+        );
+        int ackBatchSize = properties.tryGetIntProperty(PROPERTY_ACK_BATCH_SIZE, 0);
+        if (ackBatchSize > 0) {
+            this.ackAccumulator = new MongoAckAccumulator(
+                    mongoQueueCore,
+                    ackBatchSize,
+                    properties.tryGetIntProperty(PROPERTY_ACK_FLUSH_MILLS, DEFAULT_ACK_FLUSH_MILLS),
+                    () -> context.getStatistic()
+            );
+        } else {
+            this.ackAccumulator = null;
+        }
+        if (properties.tryGetBooleanProperty(PROPERTY_NOTIFY_ENABLED, false)) {
+            this.watcher = new MongoQueueWatcher(
+                    collection,
+                    properties.tryGetIntProperty(PROPERTY_NOTIFY_RETRY_MILLS, DEFAULT_NOTIFY_RETRY_MILLS),
+                    schema,
+                    fieldDestination
+            );
+        } else {
+            this.watcher = null;
+        }
+        int heartbeatMills = properties.tryGetIntProperty(PROPERTY_HEARTBEAT_MILLS, 0);
+        if (heartbeatMills > 0) {
+            this.heartbeat = new MongoLeaseHeartbeat(
+                    mongoQueueCore,
+                    resetTimeout,
+                    heartbeatMills,
+                    properties.tryGetIntProperty(PROPERTY_LEASE_MAX_SEC, DEFAULT_LEASE_MAX_SEC) * 1000L
+            );
+        } else {
+            this.heartbeat = null;
+        }
+    }
+
+    public MongoRoutedQueueBehave<T> withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = Objects.requireNonNull(retryPolicy);
+        return this;
+    }
+
+    /**
+     * Compression of binary bodies, deflate by default. Bodies are decompressed by the same compressor,
+     * so it can be changed only when queue has no messages compressed by the previous one.
+     */
+    public MongoRoutedQueueBehave<T> withPayloadCompressor(PayloadCompressor compressor) {
+        this.compressor = Objects.requireNonNull(compressor);
+        return this;
+    }
+
+    /**
+     * Collection for messages given up by retry policy. Without it such messages are removed.
+     */
+    public MongoRoutedQueueBehave<T> withDeadLetters(MongoCollection<Document> deadLetters) {
+        this.deadLetters = deadLetters;
+        return this;
+    }
+
+    /**
+     * Send dead letters back to queue
+     *
+     * @param destination destination of messages to send, null for all messages
+     * @return count of messages sent back to queue
+     */
+    public long redriveDeadLetters(String destination) {
+        if (deadLetters == null) {
+            return 0;
+        }
+        Document query = new Document();
+        if (destination != null) {
+            query.append(fieldDestination, destination);
+        }
+        return mongoQueueCore.redrive(deadLetters, query, REDRIVE_BATCH_SIZE);
+    }
+
+    /**
+     * Convert messages stored with other schemas (field names or ordering) to schema of this queue, including
+     * lease collection and dead letters. Safe to run while queue is used, messages changed during migration
+     * are converted by the next call. Messages with other field names are not fetched until they are converted,
+     * messages without created field are ordered first by schema with created field until they are converted.
+     *
+     * @return count of converted messages
+     */
+    public long migrateSchema() {
+        MongoQueueSchema schema = mongoQueueCore.getSchema();
+        long count = 0;
+        for (MongoQueueSchema from : Arrays.asList(
+                MongoQueueSchema.FULL,
+                MongoQueueSchema.COMPACT,
+                MongoQueueSchema.FULL.orderedById(),
+                MongoQueueSchema.COMPACT.orderedById()
+        )) {
+            if (from == schema) {
+                continue;
+            }
+            Map<String, String> payloadKeys = new HashMap<>();
+            payloadKeys.put(sourceField(from), fieldSource);
+            payloadKeys.put(destinationField(from), fieldDestination);
+            long converted = mongoQueueCore.migrate(from, payloadKeys, MIGRATE_BATCH_SIZE);
+            if (deadLetters != null) {
+                converted += mongoQueueCore.migrate(deadLetters, from, payloadKeys, MIGRATE_BATCH_SIZE);
+            }
+            if (converted > 0) {
+                LOG.info(String.format("converted %d messages from %s to %s", converted, from, schema));
+            }
+            count += converted;
+        }
+        return count;
+    }
+
+    /**
+     * @return schema of stored messages chosen by properties
+     */
+    static MongoQueueSchema schemaOf(PropertiesBox properties) {
+        MongoQueueSchema schema = properties.tryGetBooleanProperty(PROPERTY_SCHEMA_COMPACT, false)
+                ? MongoQueueSchema.COMPACT
+                : MongoQueueSchema.FULL;
+        return properties.tryGetBooleanProperty(PROPERTY_ORDER_ID, false) ? schema.orderedById() : schema;
+    }
+
+    private static boolean isCompact(MongoQueueSchema schema) {
+        return schema.getVersion() == MongoQueueSchema.COMPACT.getVersion();
+    }
+
+    private static String sourceField(MongoQueueSchema schema) {
+        return isCompact(schema) ? FIELD_COMPACT_SOURCE : FIELD_SOURCE;
+    }
+
+    private static String destinationField(MongoQueueSchema schema) {
+        return isCompact(schema) ? FIELD_COMPACT_DESTINATION : FIELD_DESTINATION;
     }
 
     @Override
@@ -64,62 +352,365 @@ public class MongoRoutedQueueBehave<T extends RoutedMessage> implements QueueBeh
 
     @Override
     public void put(MessageContainer<T> event) {
-        T message = event.getMessage();
-        Document queueMessage = serializer.serialize(message);
-        queueMessage.append(FIELD_SOURCE, message.getSource());
-        queueMessage.append(FIELD_DESTINATION, message.getDestination());
         this.mongoQueueCore.send(
-                serializer.serialize(event.getMessage()),
+                toQueueMessage(event.getMessage()),
                 new Date(),
                 event.getPriority()
         );
     }
 
+    @Override
+    public void putAll(Collection<MessageContainer<T>> events) {
+        // usually whole batch has the same priority and goes with one insert
+        Map<Integer, List<Document>> byPriority = new LinkedHashMap<>();
+        for (MessageContainer<T> event : events) {
+            byPriority.computeIfAbsent(
+                    event.getPriority(),
+                    (k) -> new ArrayList<>()
+            ).add(toQueueMessage(event.getMessage()));
+        }
+        Date earliestGet = new Date();
+        for (Map.Entry<Integer, List<Document>> batch : byPriority.entrySet()) {
+            this.mongoQueueCore.sendAll(batch.getValue(), earliestGet, batch.getKey());
+        }
+    }
+
+    private Document toQueueMessage(T message) {
+        Document queueMessage;
+        if (payloadBinary) {
+            queueMessage = toBinaryPayload(message);
+        } else if (FIELD_DESTINATION.equals(fieldDestination)) {
+            // routing fields of the message are replaced with the same values
+            queueMessage = serializer.serialize(message);
+        } else if (codecSerializer != null) {
+            queueMessage = codecSerializer.serialize(message, routingFields);
+        } else {
+            queueMessage = serializer.serialize(message);
+            queueMessage.keySet().removeAll(routingFields);
+        }
+        queueMessage.append(fieldSource, message.getSource());
+        queueMessage.append(fieldDestination, message.getDestination());
+        return queueMessage;
+    }
+
+    /**
+     * Body is BSON of the message without routing fields, compressed when it is not smaller than threshold
+     * and compression actually makes it smaller
+     */
+    private Document toBinaryPayload(T message) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            if (codecSerializer != null) {
+                codecSerializer.encode(writer, message, routingFields);
+            } else {
+                Document document = serializer.serialize(message);
+                document.keySet().removeAll(routingFields);
+                PAYLOAD_CODEC.encode(writer, document, EncoderContext.builder().build());
+            }
+        }
+        byte[] body = buffer.toByteArray();
+        if (compressThreshold >= 0 && body.length >= compressThreshold) {
+            byte[] compressed = compressor.compress(body);
+            if (compressed.length < body.length) {
+                return new Document(FIELD_BODY, new Binary(compressed))
+                        .append(FIELD_COMPRESSION, compressor.getName());
+            }
+        }
+        return new Document(FIELD_BODY, new Binary(body));
+    }
+
     @Override
     public Collection<MessageContainer<T>> find(QueueConsumer<T> consumer) {
+        return find(consumer, fetchLimit);
+    }
+
+    @Override
+    public Collection<MessageContainer<T>> find(QueueConsumer<T> consumer, int limit) {
         Document query = new Document();
-        query.append(FIELD_DESTINATION, consumer.getConsumerId());
-        List<MessageContainer<T>> resultList = new LinkedList<>();
-        int limit = fetchLimit;
-        while (limit-- > 0) {
-            Document queueMessage = mongoQueueCore.get(
-                    query,
-                    resetTimeout, NO_WAIT_FOR_RETRY, RETRY_IMMEDIATELY
-            );
-            context.getStatistic().increment(STAT_FIND_COUNTER);
-            if (queueMessage == null) {
-                break;
+        query.append(fieldDestination, consumer.getConsumerId());
+        return fetch(query, limit);
+    }
+
+    /**
+     * Claims messages for all consumers with one $in query. Messages are ordered by priority and age
+     * across destinations, but every destination takes at most its own limit, so a destination with old
+     * backlog does not take the whole batch.
+     */
+    @Override
+    public Map<String, Collection<MessageContainer<T>>> findAll(Map<QueueConsumer<T>, Integer> limits) {
+        Map<String, Integer> destinations = new HashMap<>();
+        for (Map.Entry<QueueConsumer<T>, Integer> limit : limits.entrySet()) {
+            destinations.merge(limit.getKey().getConsumerId(), limit.getValue(), Integer::sum);
+        }
+        Document query = new Document();
+        List<MessageContainer<T>> found = decodeLazy || codecSerializer != null
+                ? fetched(mongoQueueCore.getRawBatch(query, resetTimeout, fieldDestination, destinations), this::toRawMessageContainer)
+                : fetched(mongoQueueCore.getBatch(query, resetTimeout, fieldDestination, destinations), this::toMessageContainer);
+        Map<String, Collection<MessageContainer<T>>> result = new HashMap<>();
+        for (MessageContainer<T> messageContainer : found) {
+            result.computeIfAbsent(
+                    messageContainer.getDestination(),
+                    destination -> new ArrayList<>()
+            ).add(messageContainer);
+        }
+        return result;
+    }
+
+    private List<MessageContainer<T>> fetch(Document query, int limit) {
+        // codec serializer reads payloads straight from raw BSON, without Document tree
+        return decodeLazy || codecSerializer != null
+                ? fetched(mongoQueueCore.getRawBatch(query, resetTimeout, limit), this::toRawMessageContainer)
+                : fetched(mongoQueueCore.getBatch(query, resetTimeout, limit), this::toMessageContainer);
+    }
+
+    private <D> List<MessageContainer<T>> fetched(List<D> queueMessages, Function<D, MessageContainer<T>> decoder) {
+        context.getStatistic().increment(STAT_FIND_COUNTER);
+        List<MessageContainer<T>> resultList = new ArrayList<>(queueMessages.size());
+        for (D queueMessage : queueMessages) {
+            resultList.add(decoder.apply(queueMessage));
+        }
+        // deliveries abandoned by crashed or hung consumers are counted by resetStuck() and may reach retry limit
+        resultList.removeIf(messageContainer -> {
+            if (messageContainer.getAttempts() > 0 && retryPolicy.nextDelayMills(messageContainer.getAttempts()) < 0) {
+                giveUp(messageContainer, messageContainer.getAttempts());
+                return true;
             }
-            Object id = queueMessage.get(FIELD_ID);
-            queueMessage.remove(FIELD_ID);
-            String destination = queueMessage.getString(FIELD_DESTINATION);
-            String source = queueMessage.getString(FIELD_SOURCE);
-            queueMessage.remove(FIELD_DESTINATION);
-            queueMessage.remove(FIELD_SOURCE);
-            T message = serializer.deserialize(queueMessage);
+            return false;
+        });
+        return resultList;
+    }
+
+    private static Document toLeaseDocument(MessageContainer<?> packet) {
+        Document message = new Document(FIELD_ID, packet.getId());
+        if (packet.getLease() != null) {
+            message.append(FIELD_CLAIM, packet.getLease());
+        }
+        return message;
+    }
+
+    private MessageContainer<T> toMessageContainer(Document queueMessage) {
+        Object id = queueMessage.get(FIELD_ID);
+        Object claim = queueMessage.get(FIELD_CLAIM);
+        Number attempts = (Number) queueMessage.get(FIELD_ATTEMPTS);
+        queueMessage.remove(FIELD_ID);
+        queueMessage.remove(FIELD_CLAIM);
+        queueMessage.remove(FIELD_ATTEMPTS);
+        String destination = queueMessage.getString(fieldDestination);
+        String source = queueMessage.getString(fieldSource);
+        queueMessage.keySet().removeAll(routingFields);
+        T message;
+        if (queueMessage.get(FIELD_BODY) instanceof Binary) {
+            message = decode(decompress(
+                    ((Binary) queueMessage.get(FIELD_BODY)).getData(),
+                    queueMessage.getString(FIELD_COMPRESSION)
+            ));
+        } else {
+            message = serializer.deserialize(queueMessage);
+        }
+        message.setSource(source);
+        message.setDestination(destination);
+        MessageContainer<T> messageContainer = new MessageContainer<>(message);
+        messageContainer.setSource(source);
+        messageContainer.setDestination(destination);
+        messageContainer.setId(id);
+        messageContainer.setLease(claim);
+        messageContainer.setAttempts(attempts == null ? 0 : attempts.intValue());
+        if (heartbeat != null) {
+            heartbeat.track(id, claim);
+        }
+        return messageContainer;
+    }
+
+    private MessageContainer<T> toRawMessageContainer(RawBsonDocument queueMessage) {
+        MessageContainer<T> messageContainer = toLazyMessageContainer(queueMessage);
+        if (!decodeLazy) {
+            messageContainer.getMessage();
+        }
+        return messageContainer;
+    }
+
+    private MessageContainer<T> toLazyMessageContainer(RawBsonDocument queueMessage) {
+        // fields of raw document are read from its bytes, payload is decoded only by getMessage()
+        Object id = queueMessage.getObjectId(FIELD_RAW_ID).getValue();
+        MongoQueueSchema schema = mongoQueueCore.getSchema();
+        BsonValue claim = queueMessage.get(schema.getClaim());
+        BsonValue attempts = queueMessage.get(schema.getAttempts());
+        RawBsonDocument payload = (RawBsonDocument) queueMessage.get(schema.getPayload());
+        String source = getString(payload, fieldSource);
+        String destination = getString(payload, fieldDestination);
+        MessageContainer<T> messageContainer = MessageContainer.lazy(() -> {
+            T message = deserialize(payload);
             message.setSource(source);
             message.setDestination(destination);
-            MessageContainer<T> messageContainer = new MessageContainer<>(message);
-            messageContainer.setId(id);
-            resultList.add(messageContainer);
+            return message;
+        });
+        messageContainer.setSource(source);
+        messageContainer.setDestination(destination);
+        messageContainer.setId(id);
+        messageContainer.setLease(claim == null ? null : claim.asObjectId().getValue());
+        messageContainer.setAttempts(attempts == null ? 0 : attempts.asNumber().intValue());
+        if (heartbeat != null) {
+            heartbeat.track(id, messageContainer.getLease());
         }
-        return resultList;
+        return messageContainer;
+    }
+
+    private T deserialize(RawBsonDocument payload) {
+        BsonValue body = payload.get(FIELD_BODY);
+        if (body != null && body.isBinary()) {
+            return decode(decompress(body.asBinary().getData(), getString(payload, FIELD_COMPRESSION)));
+        }
+        return decode(payload);
+    }
+
+    private T decode(RawBsonDocument payload) {
+        if (codecSerializer != null) {
+            return codecSerializer.decode(payload.asBsonReader(), routingFields);
+        }
+        Document document = payload.decode(PAYLOAD_CODEC);
+        document.keySet().removeAll(routingFields);
+        return serializer.deserialize(document);
+    }
+
+    private RawBsonDocument decompress(byte[] body, String compression) {
+        if (compression == null) {
+            return new RawBsonDocument(body);
+        }
+        if (!compression.equals(compressor.getName())) {
+            throw new IllegalStateException(String.format(
+                    "message body is compressed with %s, but queue uses %s",
+                    compression, compressor.getName()
+            ));
+        }
+        return new RawBsonDocument(compressor.decompress(body));
+    }
+
+    private static String getString(RawBsonDocument document, String key) {
+        BsonValue value = document.get(key);
+        return value != null && value.isString() ? value.asString().getValue() : null;
     }
 
     @Override
     public void remove(MessageContainer<T> packet) {
+        if (heartbeat != null) {
+            heartbeat.untrack(packet.getId());
+        }
+        if (ackAccumulator != null) {
+            ackAccumulator.ack(packet.getId());
+            return;
+        }
         Document query = new Document();
         query.append(FIELD_ID, packet.getId());
         mongoQueueCore.ack(query);
     }
 
+    @Override
+    public void removeAll(Collection<MessageContainer<T>> packets) {
+        List<Object> ids = new ArrayList<>(packets.size());
+        for (MessageContainer<T> packet : packets) {
+            if (heartbeat != null) {
+                heartbeat.untrack(packet.getId());
+            }
+            if (ackAccumulator != null) {
+                ackAccumulator.ack(packet.getId());
+            } else {
+                ids.add(packet.getId());
+            }
+        }
+        if (!ids.isEmpty()) {
+            mongoQueueCore.ackAll(ids);
+        }
+    }
+
+    /**
+     * Messages failed the same number of times are released with one update,
+     * messages given up by retry policy are handled one by one as in reset()
+     */
+    @Override
+    public void resetAll(Collection<MessageContainer<T>> packets) {
+        Map<Integer, List<Document>> byAttempts = new HashMap<>();
+        for (MessageContainer<T> packet : packets) {
+            if (retryPolicy.nextDelayMills(packet.getAttempts() + 1) < 0) {
+                reset(packet);
+                continue;
+            }
+            if (heartbeat != null) {
+                heartbeat.untrack(packet.getId());
+            }
+            byAttempts.computeIfAbsent(packet.getAttempts(), attempts -> new ArrayList<>()).add(toLeaseDocument(packet));
+        }
+        for (Map.Entry<Integer, List<Document>> group : byAttempts.entrySet()) {
+            long delay = Math.max(retryPolicy.nextDelayMills(group.getKey() + 1), 0);
+            mongoQueueCore.releaseAll(group.getValue(), new Date(System.currentTimeMillis() + delay));
+        }
+    }
+
+    @Override
+    public void release(MessageContainer<T> event) {
+        if (heartbeat != null) {
+            heartbeat.untrack(event.getId());
+        }
+        Document message = toLeaseDocument(event);
+        mongoQueueCore.release(message, new Date(), false);
+    }
+
     @Override
     public void reset(MessageContainer<T> event) {
-        T message = event.getMessage();
-        Document queueMessage = serializer.serialize(message);
-        queueMessage.append(FIELD_SOURCE, message.getSource());
-        queueMessage.append(FIELD_DESTINATION, message.getDestination());
-        queueMessage.append(FIELD_ID, event.getId());
-        mongoQueueCore.requeue(queueMessage);
+        long delay = retryPolicy.nextDelayMills(event.getAttempts() + 1);
+        if (delay < 0) {
+            giveUp(event, event.getAttempts() + 1);
+            return;
+        }
+        if (heartbeat != null) {
+            heartbeat.untrack(event.getId());
+        }
+        mongoQueueCore.release(toLeaseDocument(event), new Date(System.currentTimeMillis() + delay));
+    }
+
+    private void giveUp(MessageContainer<T> event, int failures) {
+        if (heartbeat != null) {
+            heartbeat.untrack(event.getId());
+        }
+        Document message = toLeaseDocument(event);
+        context.getStatistic().increment(STAT_DEAD_LETTER_COUNTER);
+        if (deadLetters != null) {
+            LOG.warn(String.format(
+                    "message %s failed %d times, moved to dead letters",
+                    event.getId(), failures
+            ));
+            mongoQueueCore.deadLetter(message, deadLetters);
+        } else {
+            LOG.error(String.format(
+                    "message %s failed %d times, removed: no dead letters collection",
+                    event.getId(), failures
+            ));
+            mongoQueueCore.ack(message);
+        }
+    }
+
+    @Override
+    public boolean extendLease(MessageContainer<T> packet, int seconds) {
+        Document message = toLeaseDocument(packet);
+        return mongoQueueCore.extendLease(message, seconds);
+    }
+
+    @Override
+    public void watch(QueueConsumer<T> consumer, QueueNotificationListener listener) {
+        if (watcher != null) {
+            watcher.watch(consumer.getConsumerId(), listener);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
+        if (watcher != null) {
+            watcher.stop();
+        }
+        if (ackAccumulator != null) {
+            ackAccumulator.close();
+        }
     }
 }
@@ -2,12 +2,20 @@ package ru.infon.queuebox.mongo;
 
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import gaillard.mongo.MongoQueueCore;
+import net.c0f3.queuebox.PayloadCompressor;
+import net.c0f3.queuebox.RetryPolicy;
+import net.c0f3.queuebox.VirtualThreads;
+import net.c0f3.queuebox.mongo.MongoQueueReaper;
 import net.c0f3.queuebox.mongo.MongoRoutedQueueStatistic;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.bson.Document;
 import ru.infon.queuebox.QueueBox;
 import ru.infon.queuebox.RoutedMessage;
 import ru.infon.queuebox.common.PropertiesBox;
 
+import java.util.Optional;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -20,19 +28,44 @@ import java.util.concurrent.Executors;
  **/
 public class MongoRoutedQueueBox<T extends RoutedMessage> extends QueueBox<T> {
 
+    private static final Log LOG = LogFactory.getLog(MongoRoutedQueueBox.class);
+
     public static final String PROPERTY_THREADS_COUNT = "queue.threads.count";
+    public static final String PROPERTY_REAPER_PERIOD_MILLS = "queue.reaper.period.mills";
+    /**
+     * run handlers and producer tasks on virtual threads (JDK 21+) instead of fixed pool of queue.threads.count,
+     * handlers in flight are limited by consumer fetch limit only (see queue.fetch.limit.max)
+     */
+    public static final String PROPERTY_THREADS_VIRTUAL = "queue.threads.virtual";
+    /**
+     * move claimed messages to separate collection of leases while processed, so collection of messages
+     * and its indexes hold only messages ready for fetch
+     */
+    public static final String PROPERTY_LEASE_COLLECTION = "queue.lease.collection";
+    public static final String DEAD_LETTERS_COLLECTION_SUFFIX = "_dead";
+    public static final String LEASES_COLLECTION_SUFFIX = "_leases";
     private static final int DEFAULT_THREADS_COUNT = 10;
+    private static final int DEFAULT_REAPER_PERIOD_MILLS = 1000;
 
     private ExecutorService localExecutor;
     private final MongoCollection<Document> collection;
+    private final MongoCollection<Document> deadLetters;
+    private final MongoCollection<Document> leases;
+    private final MongoQueueReaper reaper;
     private final int threadsCount;
     private final Class<T> packetClass;
+    private RetryPolicy retryPolicy;
+    private PayloadCompressor payloadCompressor;
 
     public MongoRoutedQueueBox(Properties properties, Class<T> packetCLass) {
         super(new PropertiesBox(properties), packetCLass);
         this.packetClass = packetCLass;
         MongoConnection connection = new MongoConnection(properties);
         this.collection = connection.getMongoCollection(Document.class);
+        this.deadLetters = connection.getDatabase()
+                .getCollection(connection.getMongoCollectionName() + DEAD_LETTERS_COLLECTION_SUFFIX);
+        this.leases = createLeases(connection.getDatabase(), connection.getMongoCollectionName());
+        this.reaper = createReaper(connection.getDatabase(), connection.getMongoCollectionName());
         this.threadsCount = getProperties().tryGetIntProperty(
                 PROPERTY_THREADS_COUNT,
                 connection.getConnectionPoolSize()
@@ -46,24 +79,117 @@ public class MongoRoutedQueueBox<T extends RoutedMessage> extends QueueBox<T> {
         MongoConnection connection = new MongoConnection(properties);
         // un till getClient() or getDatabase() called - connection not attempted to create.
         this.collection = mongoDatabase.getCollection(connection.getMongoCollectionName());
+        this.deadLetters = mongoDatabase
+                .getCollection(connection.getMongoCollectionName() + DEAD_LETTERS_COLLECTION_SUFFIX);
+        this.leases = createLeases(mongoDatabase, connection.getMongoCollectionName());
+        this.reaper = createReaper(mongoDatabase, connection.getMongoCollectionName());
         this.threadsCount = getProperties().tryGetIntProperty(
                 PROPERTY_THREADS_COUNT,
                 DEFAULT_THREADS_COUNT
         );
     }
 
+    public MongoRoutedQueueBox<T> withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Compression of message bodies stored with queue.payload.binary, deflate by default
+     */
+    public MongoRoutedQueueBox<T> withPayloadCompressor(PayloadCompressor payloadCompressor) {
+        this.payloadCompressor = payloadCompressor;
+        return this;
+    }
+
+    /**
+     * Send dead letters of destination back to queue, all dead letters when destination is null
+     *
+     * @return count of messages sent back to queue
+     */
+    public long redriveDeadLetters(String destination) {
+        if (!(behave instanceof MongoRoutedQueueBehave)) {
+            throw new IllegalStateException("queue box is not started with mongo queue behave");
+        }
+        return ((MongoRoutedQueueBehave<T>) behave).redriveDeadLetters(destination);
+    }
+
+    /**
+     * Convert stored messages to schema chosen by queue.schema.compact, see
+     * {@link MongoRoutedQueueBehave#migrateSchema()}
+     *
+     * @return count of converted messages
+     */
+    public long migrateSchema() {
+        if (!(behave instanceof MongoRoutedQueueBehave)) {
+            throw new IllegalStateException("queue box is not started with mongo queue behave");
+        }
+        return ((MongoRoutedQueueBehave<T>) behave).migrateSchema();
+    }
+
     @Override
     public void start() {
         this.withStatistic(new MongoRoutedQueueStatistic());
         if (behave == null) {
-            this.withQueueBehave(new MongoRoutedQueueBehave<>(collection, getProperties(), packetClass));
+            MongoRoutedQueueBehave<T> mongoBehave = new MongoRoutedQueueBehave<>(
+                    collection,
+                    leases,
+                    getProperties(),
+                    packetClass
+            );
+            if (retryPolicy != null) {
+                mongoBehave.withRetryPolicy(retryPolicy);
+            }
+            if (payloadCompressor != null) {
+                mongoBehave.withPayloadCompressor(payloadCompressor);
+            }
+            this.withQueueBehave(mongoBehave.withDeadLetters(deadLetters));
         }
         if (this.executor == null) {
-            // additional thread for timer and common tasks
-            localExecutor = Executors.newFixedThreadPool(threadsCount + 1);
+            localExecutor = createExecutor();
             this.withExecutorService(localExecutor);
         }
         super.start();
+        reaper.start();
+    }
+
+    @Override
+    public void stop() {
+        reaper.stop();
+        super.stop();
+    }
+
+    private ExecutorService createExecutor() {
+        if (getProperties().tryGetBooleanProperty(PROPERTY_THREADS_VIRTUAL, false)) {
+            Optional<ExecutorService> virtual = VirtualThreads.newPerTaskExecutor();
+            if (virtual.isPresent()) {
+                return virtual.get();
+            }
+            LOG.warn("virtual threads are not supported by runtime, using pool of " + (threadsCount + 1) + " threads");
+        }
+        // additional thread for common tasks
+        return Executors.newFixedThreadPool(threadsCount + 1);
+    }
+
+    private MongoCollection<Document> createLeases(MongoDatabase database, String collectionName) {
+        if (!getProperties().tryGetBooleanProperty(PROPERTY_LEASE_COLLECTION, false)) {
+            return null;
+        }
+        return database.getCollection(collectionName + LEASES_COLLECTION_SUFFIX);
+    }
+
+    private MongoQueueReaper createReaper(MongoDatabase database, String collectionName) {
+        return new MongoQueueReaper(
+                new MongoQueueCore(
+                        collection,
+                        leases,
+                        MongoRoutedQueueBehave.schemaOf(getProperties()),
+                        false,
+                        getProperties().tryGetBooleanProperty(MongoRoutedQueueBehave.PROPERTY_CLOCK_SERVER, false)
+                ),
+                MongoQueueReaper.locksFor(database, collectionName),
+                getProperties().tryGetIntProperty(PROPERTY_REAPER_PERIOD_MILLS, DEFAULT_REAPER_PERIOD_MILLS)
+        );
     }
 
 }
@@ -0,0 +1,114 @@
+package gaillard.mongo;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MongoQueueSchemaTest {
+
+    @Test
+    public void convertedMessageIsRestored() {
+        Document full = fullMessage();
+        Map<String, String> toCompact = new HashMap<>();
+        toCompact.put("destination", "_d");
+        Map<String, String> toFull = Collections.singletonMap("_d", "destination");
+
+        Document compact = MongoQueueSchema.FULL.convert(full, MongoQueueSchema.COMPACT, toCompact);
+
+        Assertions.assertEquals(full.get("_id"), compact.get("_id"));
+        Assertions.assertEquals(2, compact.get(MongoQueueSchema.VERSION_FIELD));
+        Assertions.assertEquals(false, compact.get("r"));
+        Assertions.assertEquals(3, compact.get("a"));
+        Assertions.assertEquals("boo", ((Document) compact.get("p")).get("_d"));
+        Assertions.assertEquals("value", ((Document) compact.get("p")).get("key"));
+        Assertions.assertEquals(full.get("deadLettered"), compact.get("dl"));
+        Assertions.assertEquals("dl", MongoQueueSchema.COMPACT.getDeadLettered());
+        Assertions.assertFalse(compact.containsKey("payload"));
+
+        Assertions.assertEquals(full, MongoQueueSchema.COMPACT.convert(compact, MongoQueueSchema.FULL, toFull));
+    }
+
+    @Test
+    public void convertedToOrderById() {
+        Document full = fullMessage();
+        MongoQueueSchema byId = MongoQueueSchema.FULL.orderedById();
+
+        Document converted = MongoQueueSchema.FULL.convert(full, byId, Collections.emptyMap());
+
+        Assertions.assertTrue(byId.isOrderedById());
+        Assertions.assertEquals(full.get("_id"), converted.get("_id"));
+        Assertions.assertFalse(converted.containsKey("created"));
+        Assertions.assertEquals(full.get("payload"), converted.get("payload"));
+        Assertions.assertSame(byId, byId.orderedById());
+        Assertions.assertEquals(
+                new Document("v", new Document("$exists", false)).append("created", new Document("$exists", false)),
+                byId.versionQuery()
+        );
+
+        Document restored = byId.convert(converted, MongoQueueSchema.FULL, Collections.emptyMap());
+        Assertions.assertEquals(((ObjectId) full.get("_id")).getDate(), restored.get("created"));
+    }
+
+    @Test
+    public void versionQuery() {
+        Assertions.assertEquals(
+                new Document("v", new Document("$exists", false)).append("created", new Document("$exists", true)),
+                MongoQueueSchema.FULL.versionQuery()
+        );
+        Assertions.assertEquals(
+                new Document("v", 2).append("c", new Document("$exists", true)),
+                MongoQueueSchema.COMPACT.versionQuery()
+        );
+        Assertions.assertEquals(
+                new Document("v", 2).append("c", new Document("$exists", false)),
+                MongoQueueSchema.COMPACT.orderedById().versionQuery()
+        );
+    }
+
+    /**
+     * Compares stored size of small message in both schemas
+     */
+    @Test
+    public void compactSizeTest() {
+        Document full = fullMessage();
+        full.remove("deadLettered");
+        Map<String, String> toCompact = new HashMap<>();
+        toCompact.put("destination", "_d");
+        Document compact = MongoQueueSchema.FULL.convert(full, MongoQueueSchema.COMPACT, toCompact);
+
+        int fullSize = bsonSize(full);
+        int compactSize = bsonSize(compact);
+        System.out.printf("full schema: %d bytes, compact schema: %d bytes%n", fullSize, compactSize);
+        Assertions.assertTrue(compactSize < fullSize);
+    }
+
+    private static Document fullMessage() {
+        return new Document("_id", new ObjectId())
+                .append("payload", new Document("key", "value").append("destination", "boo"))
+                .append("running", false)
+                .append("resetTimestamp", new Date(Long.MAX_VALUE))
+                .append("earliestGet", new Date())
+                .append("priority", 0.0)
+                .append("created", new Date())
+                .append("attempts", 3)
+                .append("deadLettered", new Date());
+    }
+
+    private static int bsonSize(Document document) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            new DocumentCodec().encode(writer, document, EncoderContext.builder().build());
+        }
+        return buffer.getSize();
+    }
+}
@@ -8,6 +8,7 @@ import com.mongodb.client.MongoDatabase;
 import net.c0f3.queuebox.mongo.MongoContainer;
 import net.c0f3.queuebox.mongo.MongoTestHelper;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
@@ -18,10 +19,16 @@ import org.testcontainers.junit.jupiter.Testcontainers;
 import ru.infon.queuebox.mongo.MongoConnection;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -150,6 +157,55 @@ public class QueueTest {
         assertEquals(expectedTwo, indexInfo.get(2).get("key"));
     }
 
+    @Test
+    public void ensureGetIndex_partial() {
+        final MongoQueueCore partialQueue = new MongoQueueCore(collection, true);
+        partialQueue.ensureGetIndex(new Document("type", 1));
+        partialQueue.ensureGetIndex(new Document("type", 1));
+
+        List<Document> indexInfo = collection.listIndexes().into(new ArrayList<>());
+
+        assertEquals(3, indexInfo.size());
+
+        final Document expectedOne = new Document("payload.type", 1)
+            .append("priority", 1)
+            .append("created", 1)
+            .append("earliestGet", 1);
+        assertEquals(expectedOne, indexInfo.get(1).get("key"));
+        assertEquals(new Document("running", false), indexInfo.get(1).get("partialFilterExpression"));
+
+        assertEquals(new Document("resetTimestamp", 1), indexInfo.get(2).get("key"));
+        assertEquals(new Document("running", true), indexInfo.get(2).get("partialFilterExpression"));
+
+        partialQueue.send(new Document("type", 1));
+        assertEquals(1, partialQueue.getBatch(new Document("type", 1), Integer.MAX_VALUE, 10).size());
+    }
+
+    @Test
+    public void ensureGetIndex_partialReplacesFull() {
+        queue.ensureGetIndex(new Document("type", 1));
+        queue.ensureGetIndex(new Document("other", 1));
+        assertEquals(4, collection.listIndexes().into(new ArrayList<>()).size());
+
+        new MongoQueueCore(collection, true).ensureGetIndex(new Document("type", 1));
+
+        List<Document> indexInfo = collection.listIndexes().into(new ArrayList<>());
+        assertEquals(4, indexInfo.size());
+        for (Document index : indexInfo) {
+            Document key = (Document) index.get("key");
+            if (key.containsKey("payload.type")) {
+                assertEquals(new Document("running", false), index.get("partialFilterExpression"));
+            }
+        }
+        // index of other query is not replaced
+        final Document otherIndex = new Document("running", 1)
+            .append("payload.other", 1)
+            .append("priority", 1)
+            .append("created", 1)
+            .append("earliestGet", 1);
+        assertTrue(indexInfo.stream().anyMatch(index -> otherIndex.equals(index.get("key"))));
+    }
+
     @Test
     public void ensureGetIndex_tooLongCollectionName() {
         //121 chars
@@ -383,7 +439,617 @@ public class QueueTest {
         //sets resetTimestamp on messageOne
         assertNotNull(queue.get(new Document(), 0));
 
-        assertNotNull(queue.get(new Document(), Integer.MAX_VALUE));
+        //get() only claims, stuck messages are returned by resetStuck()
+        assertNull(queue.get(new Document(), Integer.MAX_VALUE, 0));
+
+        assertEquals(1, queue.resetStuck());
+
+        // abandoned delivery is counted as failed one
+        assertEquals(1, queue.getBatch(new Document(), Integer.MAX_VALUE, 1).get(0).get("attempts"));
+    }
+
+    @Test
+    public void getBatch_limit() {
+        queue.send(new Document("key", 1), new Date(), 0.1);
+        queue.send(new Document("key", 2), new Date(), 0.2);
+        queue.send(new Document("key", 3), new Date(), 0.3);
+
+        final List<Document> resultOne = queue.getBatch(new Document(), Integer.MAX_VALUE, 2);
+        assertEquals(2, resultOne.size());
+        assertEquals(1, resultOne.get(0).get("key"));
+        assertEquals(2, resultOne.get(1).get("key"));
+        assertTrue(resultOne.get(0).get("id") instanceof ObjectId);
+
+        final List<Document> resultTwo = queue.getBatch(new Document(), Integer.MAX_VALUE, 2);
+        assertEquals(1, resultTwo.size());
+        assertEquals(3, resultTwo.get(0).get("key"));
+
+        assertTrue(queue.getBatch(new Document(), Integer.MAX_VALUE, 2).isEmpty());
+        assertEquals(3, queue.count(new Document(), true));
+    }
+
+    @Test
+    public void getBatch_customPriority() {
+        queue.send(new Document("key", 1), new Date(), 0.5);
+        queue.send(new Document("key", 2), new Date(), 0.4);
+        queue.send(new Document("key", 3), new Date(), 0.3);
+
+        final List<Document> result = queue.getBatch(new Document(), Integer.MAX_VALUE, 10);
+
+        assertEquals(3, result.size());
+        assertEquals(3, result.get(0).get("key"));
+        assertEquals(2, result.get(1).get("key"));
+        assertEquals(1, result.get(2).get("key"));
+    }
+
+    @Test
+    public void getBatch_query() {
+        queue.send(new Document("type", "a"));
+        queue.send(new Document("type", "b"));
+
+        final List<Document> result = queue.getBatch(new Document("type", "b"), Integer.MAX_VALUE, 10);
+
+        assertEquals(1, result.size());
+        assertEquals("b", result.get(0).get("type"));
+    }
+
+    @Test
+    public void getBatch_groupLimits() {
+        for (int i = 0; i < 10; i++) {
+            queue.send(new Document("type", "hot").append("key", i));
+        }
+        queue.send(new Document("type", "cold").append("key", 10));
+        queue.send(new Document("type", "other").append("key", 11));
+
+        final Map<String, Integer> limits = new HashMap<>();
+        limits.put("hot", 2);
+        limits.put("cold", 3);
+        final List<Document> result = queue.getBatch(new Document(), Integer.MAX_VALUE, "type", limits);
+
+        // hot backlog is older, but takes only its limit and leaves the rest of batch to cold
+        assertEquals(3, result.size());
+        assertEquals(2, result.stream().filter(message -> "hot".equals(message.get("type"))).count());
+        assertEquals(1, result.stream().filter(message -> "cold".equals(message.get("type"))).count());
+        assertEquals(3, queue.count(new Document(), true));
+    }
+
+    @Test
+    public void getRawBatch() {
+        queue.send(new Document("key", 1), new Date(), 0.1);
+        queue.send(new Document("key", 2), new Date(), 0.2);
+
+        final List<RawBsonDocument> result = queue.getRawBatch(new Document(), Integer.MAX_VALUE, 10);
+        assertEquals(2, result.size());
+        assertEquals(1, result.get(0).getDocument("payload").getInt32("key").getValue());
+        assertEquals(2, result.get(1).getDocument("payload").getInt32("key").getValue());
+        assertTrue(result.get(0).get("_id").isObjectId());
+        assertEquals(result.get(0).get("claim"), result.get(1).get("claim"));
+
+        assertTrue(queue.getRawBatch(new Document(), Integer.MAX_VALUE, 10).isEmpty());
+        assertEquals(2, queue.count(new Document(), true));
+    }
+
+    @Test
+    public void getBatch_badMax() {
+        Assertions.assertThrows(
+            IllegalArgumentException.class,
+            () -> queue.getBatch(new Document(), Integer.MAX_VALUE, 0)
+        );
+    }
+
+    @Test
+    public void extendLease() {
+        queue.send(new Document());
+
+        final Document message = queue.getBatch(new Document(), 0, 1).get(0);
+        assertNotNull(message.get("claim"));
+
+        assertTrue(queue.extendLease(message, Integer.MAX_VALUE));
+        assertEquals(0, queue.resetStuck());
+    }
+
+    @Test
+    public void extendLease_lostClaim() {
+        queue.send(new Document());
+
+        final Document message = queue.getBatch(new Document(), 0, 1).get(0);
+        queue.resetStuck();
+        final Document reclaimed = queue.getBatch(new Document(), Integer.MAX_VALUE, 1).get(0);
+        assertEquals(message.get("id"), reclaimed.get("id"));
+
+        assertFalse(queue.extendLease(message, Integer.MAX_VALUE));
+        assertTrue(queue.extendLease(reclaimed, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void extendLeases() {
+        queue.send(new Document("key", 0));
+        queue.send(new Document("key", 1));
+
+        final List<Document> messages = queue.getBatch(new Document(), 0, 2);
+
+        assertEquals(2, queue.extendLeases(messages, Integer.MAX_VALUE));
+        assertEquals(0, queue.resetStuck());
+    }
+
+    @Test
+    public void extendLeases_mixedClaims() {
+        queue.send(new Document("key", 0));
+        final Document stale = queue.getBatch(new Document(), 0, 1).get(0);
+        queue.resetStuck();
+        assertNotNull(queue.getBatch(new Document(), Integer.MAX_VALUE, 1).get(0).get("claim"));
+
+        queue.send(new Document("key", 1));
+        final Document unclaimed = queue.get(new Document("key", 1), Integer.MAX_VALUE);
+        assertNull(unclaimed.get("claim"));
+
+        // message without claim token does not disable claim check of the other one
+        assertEquals(1, queue.extendLeases(Arrays.asList(stale, unclaimed), Integer.MAX_VALUE));
+        assertEquals(0, queue.releaseAll(Collections.singletonList(stale), new Date()));
+    }
+
+    @Test
+    public void leases_getMovesMessage() {
+        final MongoCollection<Document> leases = leasesCollection();
+        queue = new MongoQueueCore(collection, leases, false);
+        queue.ensureGetIndex();
+        queue.send(new Document("key", 0));
+
+        final Document message = queue.get(new Document(), Integer.MAX_VALUE);
+        assertEquals(0, message.get("key"));
+        assertEquals(0, collection.countDocuments());
+        assertEquals(1, leases.countDocuments());
+        assertEquals(1, queue.count(new Document(), true));
+        assertEquals(0, queue.count(new Document(), false));
+        assertEquals(1, queue.count(new Document()));
+        assertNull(queue.get(new Document(), Integer.MAX_VALUE, 0));
+
+        queue.ack(message);
+        assertEquals(0, leases.countDocuments());
+        assertEquals(0, queue.count(new Document()));
+    }
+
+    @Test
+    public void leases_release() {
+        final MongoCollection<Document> leases = leasesCollection();
+        queue = new MongoQueueCore(collection, leases, false);
+        queue.send(new Document("key", 0));
+
+        final Document message = queue.getBatch(new Document(), Integer.MAX_VALUE, 1).get(0);
+        assertTrue(queue.release(message));
+        assertFalse(queue.release(message));
+        assertEquals(0, leases.countDocuments());
+
+        final Document ready = collection.find().first();
+        assertNotNull(ready);
+        assertEquals(false, ready.get("running"));
+        assertEquals(1, ready.get("attempts"));
+
+        final Document reclaimed = queue.get(new Document(), Integer.MAX_VALUE);
+        assertEquals(message.get("id"), reclaimed.get("id"));
+    }
+
+    @Test
+    public void leases_lateAck() {
+        final MongoCollection<Document> leases = leasesCollection();
+        queue = new MongoQueueCore(collection, leases, false);
+        queue.send(new Document("key", 0));
+        queue.send(new Document("key", 1));
+
+        final List<Document> messages = queue.getBatch(new Document(), 0, 2);
+        assertEquals(2, queue.resetStuck());
+        assertEquals(0, leases.countDocuments());
+
+        // ack after lease expired removes message moved back to queue collection
+        queue.ack(messages.get(0));
+        assertEquals(1, queue.ackAll(Collections.singletonList(messages.get(1).get("id"))));
+        assertEquals(0, collection.countDocuments());
+    }
+
+    @Test
+    public void leases_resetStuck() {
+        final MongoCollection<Document> leases = leasesCollection();
+        queue = new MongoQueueCore(collection, leases, false);
+        queue.send(new Document("key", 0));
+        queue.send(new Document("key", 1));
+
+        final List<Document> messages = queue.getBatch(new Document(), 0, 2);
+        assertEquals(2, messages.size());
+        assertTrue(queue.extendLease(messages.get(0), Integer.MAX_VALUE));
+
+        assertEquals(1, queue.resetStuck());
+        assertEquals(1, collection.countDocuments());
+        assertEquals(1, leases.countDocuments());
+        assertFalse(queue.extendLease(messages.get(1), Integer.MAX_VALUE));
+
+        final Document reclaimed = queue.get(new Document(), Integer.MAX_VALUE);
+        assertEquals(messages.get(1).get("id"), reclaimed.get("id"));
+        assertEquals(1, reclaimed.get("attempts"));
+    }
+
+    @Test
+    public void leases_resetStuckWhileClaimed() throws InterruptedException {
+        final MongoCollection<Document> leases = leasesCollection();
+        queue = new MongoQueueCore(collection, leases, false);
+        final int count = 50;
+        for (int i = 0; i < count; i++) {
+            queue.send(new Document("key", i));
+        }
+
+        // leases expire at once, so messages moved back are claimed anew while resetStuck() is running
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<RuntimeException> error = new AtomicReference<>();
+        final Thread reset = new Thread(() -> {
+            try {
+                while (!stop.get()) {
+                    queue.resetStuck();
+                }
+            } catch (RuntimeException e) {
+                error.set(e);
+            }
+        });
+        reset.start();
+        for (int i = 0; i < 500; i++) {
+            queue.getBatch(new Document(), 0, 10);
+        }
+        stop.set(true);
+        reset.join();
+        assertNull(error.get());
+
+        queue.resetStuck();
+        assertEquals(0, leases.countDocuments());
+        assertEquals(count, collection.countDocuments());
+        assertEquals(count, collection.distinct("payload.key", Integer.class).into(new ArrayList<>()).size());
+    }
+
+    @Test
+    public void leases_interruptedMove() {
+        final MongoCollection<Document> leases = leasesCollection();
+        queue = new MongoQueueCore(collection, leases, false);
+        queue.send(new Document("key", 0));
+        final Document ready = collection.find().first();
+        assertNotNull(ready);
+        // crash after lease insert left message in both collections
+        leases.insertOne(new Document(ready).append("running", true).append("resetTimestamp", new Date(0)));
+
+        assertTrue(queue.getBatch(new Document(), Integer.MAX_VALUE, 1).isEmpty());
+        assertEquals(1, queue.resetStuck());
+        assertEquals(0, leases.countDocuments());
+
+        final Document message = queue.get(new Document(), Integer.MAX_VALUE);
+        assertEquals(0, message.get("key"));
+    }
+
+    /**
+     * Compares index writes of claim and ack between running flag and lease collection layouts.
+     */
+    @Test
+    public void leases_indexWriteSpeedTest() {
+        final int count = 2000;
+        final Document beforeSort = new Document("type", 1);
+        for (boolean leased : new boolean[]{false, true}) {
+            collection.drop();
+            final MongoCollection<Document> leases = leasesCollection();
+            queue = new MongoQueueCore(collection, leased ? leases : null, false);
+            queue.ensureGetIndex(beforeSort);
+            final List<Document> payloads = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                payloads.add(new Document("type", i % 4));
+            }
+            queue.sendAll(payloads);
+            final long writesBefore = indexWrites(collection) + indexWrites(leases);
+
+            final long start = System.nanoTime();
+            List<Document> messages;
+            while (!(messages = queue.getBatch(new Document("type", 1), Integer.MAX_VALUE, 100)).isEmpty()) {
+                queue.ackAll(messages.stream().map(message -> message.get("id")).collect(Collectors.toList()));
+            }
+            final long elapsed = System.nanoTime() - start;
+
+            final long writes = indexWrites(collection) + indexWrites(leases) - writesBefore;
+            System.out.printf(
+                "%s layout: %d index writes, %d ns per message%n",
+                leased ? "lease collection" : "running flag", writes, elapsed / (count / 4)
+            );
+        }
+    }
+
+    private MongoCollection<Document> leasesCollection() {
+        final MongoCollection<Document> leases = db.getCollection(COLLECTION_NAME + "_leases");
+        leases.drop();
+        return leases;
+    }
+
+    /**
+     * @return sum of inserts and removes made by WiredTiger cursors of all indexes of collection
+     */
+    private long indexWrites(final MongoCollection<Document> target) {
+        final Document stats = db.runCommand(new Document("collStats", target.getNamespace().getCollectionName()));
+        final Document indexDetails = stats.get("indexDetails", new Document());
+        long writes = 0;
+        for (Object detail : indexDetails.values()) {
+            final Document cursor = ((Document) detail).get("cursor", new Document());
+            for (String counter : Arrays.asList("insert calls", "remove calls")) {
+                final Object value = cursor.get(counter);
+                if (value instanceof Number) {
+                    writes += ((Number) value).longValue();
+                }
+            }
+        }
+        return writes;
+    }
+
+    @Test
+    public void serverClock_send() {
+        queue = new MongoQueueCore(collection, null, false, true);
+        assertTrue(queue.isServerClock());
+
+        // payload values looking like field paths are stored as they are
+        queue.send(new Document("key", "$earliestGet"));
+        queue.sendAll(Arrays.asList(new Document("key", 1), new Document("key", 2)));
+
+        final Document stored = collection.find(new Document("payload.key", "$earliestGet")).first();
+        assertNotNull(stored);
+        assertTrue(stored.get("created") instanceof Date);
+        assertTrue(stored.get("earliestGet") instanceof Date);
+        assertEquals(new Date(Long.MAX_VALUE), stored.get("resetTimestamp"));
+
+        final Document message = queue.get(new Document("key", "$earliestGet"), Integer.MAX_VALUE);
+        assertEquals("$earliestGet", message.get("key"));
+        assertEquals(2, queue.getBatch(new Document(), Integer.MAX_VALUE, 10).size());
+    }
+
+    @Test
+    public void serverClock_earliestGet() {
+        queue = new MongoQueueCore(collection, null, false, true);
+        queue.send(new Document("key", 0), new Date(System.currentTimeMillis() + 60000));
+
+        assertNull(queue.get(new Document(), Integer.MAX_VALUE, 0));
+
+        final Document stored = collection.find().first();
+        assertNotNull(stored);
+        final long delay = ((Date) stored.get("earliestGet")).getTime() - ((Date) stored.get("created")).getTime();
+        assertTrue(delay > 50000 && delay <= 60000);
+    }
+
+    @Test
+    public void serverClock_resetStuck() {
+        queue = new MongoQueueCore(collection, null, false, true);
+        queue.send(new Document("key", 0));
+        queue.send(new Document("key", 1));
+
+        final List<Document> messages = queue.getBatch(new Document(), 0, 2);
+        assertEquals(2, messages.size());
+        assertTrue(queue.extendLease(messages.get(0), Integer.MAX_VALUE));
+
+        assertEquals(1, queue.resetStuck());
+        final Document reclaimed = queue.get(new Document(), Integer.MAX_VALUE);
+        assertEquals(messages.get(1).get("id"), reclaimed.get("id"));
+    }
+
+    @Test
+    public void serverClock_releaseAndRequeue() {
+        queue = new MongoQueueCore(collection, null, false, true);
+        queue.send(new Document("key", 0));
+
+        Document message = queue.get(new Document(), Integer.MAX_VALUE);
+        assertTrue(queue.release(message));
+        message = queue.get(new Document(), Integer.MAX_VALUE);
+        assertEquals(1, message.get("attempts"));
+
+        assertEquals(1, queue.releaseAll(Collections.singletonList(message), new Date()));
+        message = queue.get(new Document(), Integer.MAX_VALUE);
+        assertEquals(2, message.get("attempts"));
+
+        queue.requeue(message);
+        final Document stored = collection.find().first();
+        assertNotNull(stored);
+        assertFalse(stored.containsKey("claim"));
+        assertEquals(false, stored.get("running"));
+        assertEquals(0, ((Document) stored.get("payload")).get("key"));
+    }
+
+    @Test
+    public void serverClock_notWithLeaseCollection() {
+        queue = new MongoQueueCore(collection, leasesCollection(), false, true);
+        assertFalse(queue.isServerClock());
+    }
+
+    @Test
+    public void schema_compact() {
+        queue = new MongoQueueCore(collection, null, MongoQueueSchema.COMPACT, false, false);
+        queue.ensureGetIndex(new Document("type", 1));
+        queue.send(new Document("type", 1).append("key", 0));
+
+        final Document stored = collection.find().first();
+        assertNotNull(stored);
+        assertEquals(2, stored.get("v"));
+        assertEquals(new Document("type", 1).append("key", 0), stored.get("p"));
+        assertFalse(stored.containsKey("payload"));
+
+        final Document message = queue.get(new Document("type", 1), Integer.MAX_VALUE);
+        assertEquals(0, message.get("key"));
+        assertEquals(1, queue.count(new Document(), true));
+        assertTrue(queue.release(message));
+        assertEquals(1, queue.get(new Document(), Integer.MAX_VALUE).get("attempts"));
+        assertEquals(0, queue.resetStuck());
+
+        final Document indexKey = new Document("r", 1)
+            .append("p.type", 1)
+            .append("pr", 1)
+            .append("c", 1)
+            .append("eg", 1);
+        assertTrue(collection.listIndexes().into(new ArrayList<>()).stream()
+            .anyMatch(index -> indexKey.equals(index.get("key"))));
+    }
+
+    @Test
+    public void schema_migrate() {
+        queue.send(new Document("key", 0).append("destination", "boo"));
+        queue.send(new Document("key", 1).append("destination", "boo"));
+        final Document running = queue.get(new Document("key", 1), Integer.MAX_VALUE);
+
+        final MongoQueueCore compact = new MongoQueueCore(collection, null, MongoQueueSchema.COMPACT, false, false);
+        assertNull(compact.get(new Document(), Integer.MAX_VALUE, 0));
+
+        final Map<String, String> payloadKeys = Collections.singletonMap("destination", "_d");
+        assertEquals(2, compact.migrate(MongoQueueSchema.FULL, payloadKeys, 1));
+        assertEquals(0, compact.migrate(MongoQueueSchema.FULL, payloadKeys, 1));
+        assertEquals(0, collection.countDocuments(MongoQueueSchema.FULL.versionQuery()));
+
+        final Document message = compact.get(new Document("_d", "boo"), Integer.MAX_VALUE);
+        assertEquals(0, message.get("key"));
+        // claim of message taken before migration is kept
+        assertTrue(compact.release(running));
+        assertEquals(1, compact.get(new Document(), Integer.MAX_VALUE).get("key"));
+    }
+
+    /**
+     * Compares stored size, index size and send/claim speed of full and compact schema
+     */
+    @Test
+    public void schema_storageSpeedTest() {
+        final int count = 5000;
+        for (MongoQueueSchema schema : Arrays.asList(MongoQueueSchema.FULL, MongoQueueSchema.COMPACT)) {
+            collection.drop();
+            queue = new MongoQueueCore(collection, null, schema, false, false);
+            queue.ensureGetIndex(new Document("type", 1));
+            final List<Document> payloads = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                payloads.add(new Document("type", i % 4).append("value", i));
+            }
+
+            long start = System.nanoTime();
+            queue.sendAll(payloads);
+            final long sendNanos = System.nanoTime() - start;
+
+            final Document stats = db.runCommand(new Document("collStats", COLLECTION_NAME));
+
+            start = System.nanoTime();
+            List<Document> messages;
+            while (!(messages = queue.getBatch(new Document("type", 1), Integer.MAX_VALUE, 100)).isEmpty()) {
+                queue.ackAll(messages.stream().map(message -> message.get("id")).collect(Collectors.toList()));
+            }
+            final long claimNanos = System.nanoTime() - start;
+
+            System.out.printf(
+                "%s: avgObjSize %s bytes, size %s bytes, totalIndexSize %s bytes, send %d ns, claim and ack %d ns per message%n",
+                schema, stats.get("avgObjSize"), stats.get("size"), stats.get("totalIndexSize"),
+                sendNanos / count, claimNanos / (count / 4)
+            );
+        }
+    }
+
+    @Test
+    public void orderById_get() {
+        queue = new MongoQueueCore(collection, null, MongoQueueSchema.FULL.orderedById(), false, false);
+        queue.ensureGetIndex(new Document("type", 1));
+        queue.send(new Document("type", 1).append("key", 0), new Date(), 0.5);
+        queue.send(new Document("type", 1).append("key", 1), new Date(), 0.5);
+        queue.send(new Document("type", 1).append("key", 2), new Date(), 0.1);
+
+        final Document stored = collection.find().first();
+        assertNotNull(stored);
+        assertFalse(stored.containsKey("created"));
+
+        assertEquals(2, queue.get(new Document("type", 1), Integer.MAX_VALUE).get("key"));
+        assertEquals(0, queue.get(new Document("type", 1), Integer.MAX_VALUE).get("key"));
+        assertEquals(1, queue.get(new Document("type", 1), Integer.MAX_VALUE).get("key"));
+
+        final Document indexKey = new Document("running", 1)
+            .append("payload.type", 1)
+            .append("priority", 1)
+            .append("_id", 1)
+            .append("earliestGet", 1);
+        assertTrue(collection.listIndexes().into(new ArrayList<>()).stream()
+            .anyMatch(index -> indexKey.equals(index.get("key"))));
+    }
+
+    @Test
+    public void orderById_requeue() {
+        queue = new MongoQueueCore(collection, null, MongoQueueSchema.FULL.orderedById(), false, false);
+        queue.send(new Document("key", 0));
+        queue.send(new Document("key", 1));
+
+        final Document message = queue.get(new Document(), Integer.MAX_VALUE);
+        assertEquals(0, message.get("key"));
+        queue.requeue(message);
+
+        assertEquals(2, collection.countDocuments());
+        assertEquals(0, collection.countDocuments(new Document("_id", message.get("id"))));
+        // requeued message gets new id and is behind messages sent before
+        assertEquals(1, queue.get(new Document(), Integer.MAX_VALUE).get("key"));
+        assertEquals(0, queue.get(new Document(), Integer.MAX_VALUE).get("key"));
+    }
+
+    @Test
+    public void orderById_withLeaseCollection() {
+        final MongoCollection<Document> leases = leasesCollection();
+        queue = new MongoQueueCore(collection, leases, MongoQueueSchema.COMPACT.orderedById(), false, false);
+        queue.send(new Document("key", 0));
+
+        final Document message = queue.get(new Document(), Integer.MAX_VALUE);
+        assertEquals(1, leases.countDocuments());
+        queue.ackSend(message, new Document("key", 1));
+
+        assertEquals(0, leases.countDocuments());
+        final Document stored = collection.find().first();
+        assertNotNull(stored);
+        assertNotEquals(message.get("id"), stored.get("_id"));
+        assertFalse(stored.containsKey("c"));
+        assertEquals(1, queue.get(new Document(), Integer.MAX_VALUE).get("key"));
+    }
+
+    @Test
+    public void orderById_migrate() {
+        queue.send(new Document("key", 0));
+        queue.send(new Document("key", 1));
+
+        final MongoQueueCore byId = new MongoQueueCore(collection, null, MongoQueueSchema.FULL.orderedById(), false, false);
+        assertEquals(2, byId.migrate(MongoQueueSchema.FULL, Collections.emptyMap(), 1));
+        assertEquals(0, byId.migrate(MongoQueueSchema.FULL, Collections.emptyMap(), 1));
+        assertEquals(0, collection.countDocuments(new Document("created", new Document("$exists", true))));
+
+        // switching back restores created from ObjectId
+        assertEquals(2, queue.migrate(MongoQueueSchema.FULL.orderedById(), Collections.emptyMap(), 1));
+        for (Document stored : collection.find()) {
+            assertEquals(stored.getObjectId("_id").getDate(), stored.get("created"));
+        }
+        assertEquals(0, queue.get(new Document(), Integer.MAX_VALUE).get("key"));
+        assertEquals(1, queue.get(new Document(), Integer.MAX_VALUE).get("key"));
+    }
+
+    /**
+     * Compares index size and claim latency of ordering by created field and by _id
+     */
+    @Test
+    public void orderById_indexSizeSpeedTest() {
+        final int count = 5000;
+        for (MongoQueueSchema schema : Arrays.asList(MongoQueueSchema.FULL, MongoQueueSchema.FULL.orderedById())) {
+            collection.drop();
+            queue = new MongoQueueCore(collection, null, schema, false, false);
+            queue.ensureGetIndex(new Document("type", 1));
+            final List<Document> payloads = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                payloads.add(new Document("type", i % 4).append("value", i));
+            }
+            queue.sendAll(payloads);
+
+            final Document stats = db.runCommand(new Document("collStats", COLLECTION_NAME));
+
+            final long start = System.nanoTime();
+            Document message;
+            while ((message = queue.get(new Document("type", 1), Integer.MAX_VALUE, 0)) != null) {
+                queue.ack(message);
+            }
+            final long claimNanos = System.nanoTime() - start;
+
+            System.out.printf(
+                "%s: avgObjSize %s bytes, totalIndexSize %s bytes, indexSizes %s, claim and ack %d ns per message%n",
+                schema, stats.get("avgObjSize"), stats.get("totalIndexSize"), stats.get("indexSizes"),
+                claimNanos / (count / 4)
+            );
+        }
     }
 
     @Test
@@ -480,6 +1146,26 @@ public class QueueTest {
         );
     }
 
+    @Test
+    public void ackAll() {
+        queue.send(new Document("key", 0));
+        queue.send(new Document("key", 1));
+        queue.send(new Document("key", 2));
+
+        final List<Document> result = queue.getBatch(new Document(), Integer.MAX_VALUE, 2);
+
+        assertEquals(2, queue.ackAll(Arrays.asList(result.get(0).get("id"), result.get(1).get("id"))));
+        assertEquals(1, collection.countDocuments());
+    }
+
+    @Test
+    public void ackAll_wrongIdType() {
+        Assertions.assertThrows(
+            IllegalArgumentException.class,
+            () -> queue.ackAll(Collections.singletonList(new Document()))
+        );
+    }
+
     @Test
     public void ackSend() {
         final Document message = new Document("key", 0);
@@ -591,6 +1277,176 @@ public class QueueTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    public void requeue_fromBatch() {
+        queue.send(new Document("key", 0));
+        final Document message = queue.getBatch(new Document(), Integer.MAX_VALUE, 1).get(0);
+        assertTrue(queue.release(message));
+
+        final Document released = queue.getBatch(new Document(), Integer.MAX_VALUE, 1).get(0);
+        assertEquals(1, released.get("attempts"));
+        queue.requeue(released);
+
+        final Document actual = collection.find().first();
+        assertNotNull(actual);
+        assertEquals(new Document("key", 0), actual.get("payload"));
+        assertFalse(actual.containsKey("claim"));
+    }
+
+    @Test
+    public void release() {
+        queue.send(new Document("key", 0), new Date(), 0.8);
+        final Document created = collection.find().first();
+
+        final Document message = queue.getBatch(new Document(), Integer.MAX_VALUE, 1).get(0);
+        final Date expectedEarliestGet = new Date(System.currentTimeMillis() + 60000);
+        assertTrue(queue.release(message, expectedEarliestGet));
+
+        final Document actual = collection.find().first();
+        assert actual != null;
+        final Document expected = new Document("_id", message.get("id"))
+            .append("payload", new Document("key", 0))
+            .append("running", false)
+            .append("resetTimestamp", new Date(Long.MAX_VALUE))
+            .append("earliestGet", expectedEarliestGet)
+            .append("priority", 0.8)
+            .append("created", created.get("created"))
+            .append("attempts", 1);
+        assertEquals(expected, actual);
+
+        assertTrue(queue.getBatch(new Document(), Integer.MAX_VALUE, 1).isEmpty());
+    }
+
+    @Test
+    public void deadLetter() {
+        final MongoCollection<Document> deadLetters = db.getCollection(COLLECTION_NAME + "_dead");
+        deadLetters.drop();
+        queue.send(new Document("key", 0));
+
+        final Document message = queue.getBatch(new Document(), Integer.MAX_VALUE, 1).get(0);
+        assertTrue(queue.deadLetter(message, deadLetters));
+
+        assertEquals(0, collection.countDocuments());
+        final Document dead = deadLetters.find().first();
+        assert dead != null;
+        assertEquals(message.get("id"), dead.get("_id"));
+        assertEquals(new Document("key", 0), dead.get("payload"));
+        assertFalse(dead.containsKey("claim"));
+        assertNotNull(dead.get("deadLettered"));
+        deadLetters.drop();
+    }
+
+    @Test
+    public void deadLetter_lostClaim() {
+        final MongoCollection<Document> deadLetters = db.getCollection(COLLECTION_NAME + "_dead");
+        deadLetters.drop();
+        queue.send(new Document());
+
+        final Document message = queue.getBatch(new Document(), 0, 1).get(0);
+        queue.resetStuck();
+        queue.getBatch(new Document(), Integer.MAX_VALUE, 1);
+
+        assertFalse(queue.deadLetter(message, deadLetters));
+        assertEquals(1, collection.countDocuments());
+        assertEquals(0, deadLetters.countDocuments());
+        deadLetters.drop();
+    }
+
+    @Test
+    public void redrive() {
+        final MongoCollection<Document> deadLetters = db.getCollection(COLLECTION_NAME + "_dead");
+        deadLetters.drop();
+        for (int i = 0; i < 5; i++) {
+            queue.send(new Document("key", i % 2));
+        }
+        for (Document message : queue.getBatch(new Document(), Integer.MAX_VALUE, 5)) {
+            queue.release(message);
+            queue.deadLetter(message, deadLetters);
+        }
+
+        assertEquals(3, queue.redrive(deadLetters, new Document("key", 0), 2));
+        assertEquals(2, deadLetters.countDocuments());
+        assertEquals(3, queue.count(new Document("key", 0), false));
+
+        final Document redriven = collection.find().first();
+        assert redriven != null;
+        assertFalse(redriven.containsKey("attempts"));
+        assertFalse(redriven.containsKey("deadLettered"));
+        assertEquals(3, queue.getBatch(new Document("key", 0), Integer.MAX_VALUE, 5).size());
+        deadLetters.drop();
+    }
+
+    @Test
+    public void release_withoutAttempt() {
+        queue.send(new Document("key", 0));
+
+        final Document message = queue.getBatch(new Document(), Integer.MAX_VALUE, 1).get(0);
+        assertTrue(queue.release(message, new Date(), false));
+
+        final Document actual = collection.find().first();
+        assert actual != null;
+        assertFalse(actual.containsKey("attempts"));
+        assertFalse(actual.containsKey("claim"));
+        assertEquals(1, queue.getBatch(new Document(), Integer.MAX_VALUE, 1).size());
+    }
+
+    @Test
+    public void releaseAll() {
+        for (int i = 0; i < 3; i++) {
+            queue.send(new Document("key", i));
+        }
+        final List<Document> messages = queue.getBatch(new Document(), Integer.MAX_VALUE, 3);
+
+        final Date earliestGet = new Date(System.currentTimeMillis() + 60000);
+        assertEquals(2, queue.releaseAll(messages.subList(0, 2), earliestGet));
+
+        assertEquals(2, queue.count(new Document(), false));
+        assertEquals(1, queue.count(new Document(), true));
+        for (Document released : collection.find(new Document("running", false))) {
+            assertEquals(earliestGet, released.get("earliestGet"));
+            assertEquals(1, released.get("attempts"));
+            assertFalse(released.containsKey("claim"));
+        }
+        // released twice with old claim
+        assertEquals(0, queue.releaseAll(messages.subList(0, 2), new Date()));
+    }
+
+    @Test
+    public void release_lostClaim() {
+        queue.send(new Document());
+
+        final Document message = queue.getBatch(new Document(), 0, 1).get(0);
+        queue.resetStuck();
+        final Document reclaimed = queue.getBatch(new Document(), Integer.MAX_VALUE, 1).get(0);
+
+        assertFalse(queue.release(message));
+        assertEquals(1, queue.count(new Document(), true));
+        assertTrue(queue.release(reclaimed));
+        assertEquals(0, queue.count(new Document(), true));
+    }
+
+    @Test
+    public void release_notRunning() {
+        queue.send(new Document());
+        final Document message = queue.get(new Document(), Integer.MAX_VALUE);
+        assertTrue(queue.release(message));
+
+        final Date earliestGet = new Date(System.currentTimeMillis() + 60000);
+        assertFalse(queue.release(message, earliestGet));
+        final Document stored = collection.find().first();
+        assertNotNull(stored);
+        assertEquals(1, stored.get("attempts"));
+        assertNotEquals(earliestGet, stored.get("earliestGet"));
+    }
+
+    @Test
+    public void release_wrongIdType() {
+        Assertions.assertThrows(
+            IllegalArgumentException.class,
+            () -> queue.release(new Document("id", new Document()))
+        );
+    }
+
     @Test
     public void requeue_wrongIdType() {
         Assertions.assertThrows(
@@ -656,6 +1512,42 @@ public class QueueTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    public void sendAll() {
+        final Date expectedEarliestGet = new Date();
+        final double expectedPriority = 0.8;
+        queue.sendAll(Arrays.asList(new Document("key", 0), new Document("key", 1)), expectedEarliestGet, expectedPriority);
+
+        assertEquals(2, collection.countDocuments());
+
+        for (final Document actual : collection.find()) {
+            final Document expected = new Document("_id", actual.get("_id"))
+                .append("payload", actual.get("payload"))
+                .append("running", false)
+                .append("resetTimestamp", new Date(Long.MAX_VALUE))
+                .append("earliestGet", expectedEarliestGet)
+                .append("priority", expectedPriority)
+                .append("created", actual.get("created"));
+            assertEquals(expected, actual);
+        }
+        assertEquals(2, queue.getBatch(new Document(), Integer.MAX_VALUE, 10).size());
+    }
+
+    @Test
+    public void sendAll_empty() {
+        queue.sendAll(new ArrayList<>());
+
+        assertEquals(0, collection.countDocuments());
+    }
+
+    @Test
+    public void sendAll_nanPriority() {
+        Assertions.assertThrows(
+            IllegalArgumentException.class,
+            () -> queue.sendAll(Collections.singletonList(new Document()), new Date(), Double.NaN)
+        );
+    }
+
     @Test
     public void send_nanPriority() {
         Assertions.assertThrows(
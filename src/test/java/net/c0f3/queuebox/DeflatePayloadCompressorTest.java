@@ -0,0 +1,41 @@
+package net.c0f3.queuebox;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class DeflatePayloadCompressorTest {
+
+    @Test
+    public void compressedDataIsRestored() {
+        PayloadCompressor compressor = new DeflatePayloadCompressor();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("{\"key\":\"value ").append(i).append("\"},");
+        }
+        byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = compressor.compress(data);
+
+        Assertions.assertTrue(compressed.length < data.length / 4);
+        Assertions.assertArrayEquals(data, compressor.decompress(compressed));
+        Assertions.assertEquals(0, compressor.decompress(compressor.compress(new byte[0])).length);
+    }
+
+    @Test
+    public void brokenDataIsRejected() {
+        PayloadCompressor compressor = new DeflatePayloadCompressor();
+        byte[] compressed = compressor.compress(new byte[1000]);
+
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> compressor.decompress(Arrays.copyOf(compressed, compressed.length / 2))
+        );
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> compressor.decompress("not compressed".getBytes(StandardCharsets.UTF_8))
+        );
+    }
+}
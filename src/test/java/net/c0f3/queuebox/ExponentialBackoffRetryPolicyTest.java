@@ -0,0 +1,36 @@
+package net.c0f3.queuebox;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ExponentialBackoffRetryPolicyTest {
+
+    @Test
+    public void delayGrowsUpToMax() {
+        RetryPolicy policy = new ExponentialBackoffRetryPolicy(0, 100, 1000, 0);
+
+        Assertions.assertEquals(100, policy.nextDelayMills(1));
+        Assertions.assertEquals(200, policy.nextDelayMills(2));
+        Assertions.assertEquals(400, policy.nextDelayMills(3));
+        Assertions.assertEquals(1000, policy.nextDelayMills(5));
+        Assertions.assertEquals(1000, policy.nextDelayMills(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        RetryPolicy policy = new ExponentialBackoffRetryPolicy(3, 100, 1000, 0);
+
+        Assertions.assertEquals(200, policy.nextDelayMills(2));
+        Assertions.assertEquals(RetryPolicy.GIVE_UP, policy.nextDelayMills(3));
+    }
+
+    @Test
+    public void jitterReducesDelay() {
+        RetryPolicy policy = new ExponentialBackoffRetryPolicy(0, 1000, 1000, 0.5);
+
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.nextDelayMills(1);
+            Assertions.assertTrue(delay > 500 && delay <= 1000);
+        }
+    }
+}
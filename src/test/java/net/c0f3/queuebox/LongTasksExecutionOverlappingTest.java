@@ -19,7 +19,9 @@ import ru.infon.queuebox.mongo.MongoConnection;
 import ru.infon.queuebox.mongo.MongoRoutedQueueBox;
 import ru.infon.queuebox.mongo.MongoRoutedQueueBehave;
 
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -97,6 +99,49 @@ public class LongTasksExecutionOverlappingTest {
 
     }
 
+    @Test
+    public void testNoOverlapWithLeaseHeartbeat() throws InterruptedException {
+        int tasksCount = 3;
+        int delaySeconds = 4;
+
+        Properties props = mongoParams.getProperties();
+        props.put(MongoRoutedQueueBehave.PROPERTY_RESET_TIMEOUT, 1);
+        props.put(MongoRoutedQueueBehave.PROPERTY_HEARTBEAT_MILLS, 300);
+        props.put(MongoRoutedQueueBox.PROPERTY_REAPER_PERIOD_MILLS, 200);
+        QueueBox<JustPojoRouted> queueBox = new MongoRoutedQueueBox<>(props, JustPojoRouted.class);
+        queueBox.start();
+        Map<Integer, AtomicInteger> deliveries = new ConcurrentHashMap<>();
+        CountDownLatch door = new CountDownLatch(tasksCount);
+
+        queueBox.subscribe(new QueueConsumer<JustPojoRouted>() {
+            @Override
+            public void onPacket(MessageContainer<JustPojoRouted> message) {
+                deliveries.computeIfAbsent(
+                        message.getMessage().getIntValue(),
+                        (k) -> new AtomicInteger()
+                ).incrementAndGet();
+                longTask(delaySeconds);
+                message.done();
+                door.countDown();
+            }
+
+            @Override
+            public String getConsumerId() {
+                return DESTINATION;
+            }
+        });
+
+        for (int i = 0; i < tasksCount; i++) {
+            queueBox.queue(randomMessage(i));
+        }
+
+        Assertions.assertTrue(door.await(delaySeconds * (tasksCount + 1), TimeUnit.SECONDS));
+        queueBox.stop();
+
+        // message timeout is shorter than handling, but leases are renewed and nothing is redelivered
+        deliveries.forEach((message, count) -> Assertions.assertEquals(1, count.get()));
+    }
+
     private static JustPojoRouted randomMessage(int counter) {
         JustPojoRouted message = new JustPojoRouted();
         message.setDestination(DESTINATION);
@@ -0,0 +1,28 @@
+package net.c0f3.queuebox;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void supportedFromJava21() throws Exception {
+        String version = System.getProperty("java.specification.version");
+        boolean expected = !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+        Assertions.assertEquals(expected, VirtualThreads.isSupported());
+
+        Optional<ExecutorService> executor = VirtualThreads.newPerTaskExecutor();
+        Assertions.assertEquals(expected, executor.isPresent());
+        if (executor.isPresent()) {
+            Object virtual = executor.get()
+                    .submit(() -> Thread.class.getMethod("isVirtual").invoke(Thread.currentThread()))
+                    .get(10, TimeUnit.SECONDS);
+            Assertions.assertEquals(Boolean.TRUE, virtual);
+            executor.get().shutdown();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package net.c0f3.queuebox.mongo;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.infon.queue.mongo.JustPojoRouted;
+import ru.infon.queuebox.QueueBox;
+import ru.infon.queuebox.mongo.MongoConnection;
+import ru.infon.queuebox.mongo.MongoRoutedQueueBehave;
+import ru.infon.queuebox.mongo.MongoRoutedQueueBox;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@Testcontainers
+public class MongoNotificationTest {
+
+    @Container
+    private static final MongoReplicaSetContainer MONGO = new MongoReplicaSetContainer();
+
+    private static final String DESTINATION = "default-destination";
+
+    @Test
+    public void testWakeupWithoutPolling() throws Exception {
+        Properties props = new Properties();
+        props.put(MongoConnection.MONGO_DB_DB, MongoReplicaSetContainer.DATABASE);
+        props.put(MongoConnection.MONGO_QUEUE_COLLECTION_NAME, MongoTestHelper.COLLECTION_NAME);
+        props.put(MongoConnection.MONGO_DB_URL, String.format("mongodb://%s:%s",
+                MONGO.getContainerIpAddress(),
+                MONGO.getMappedPort(MongoReplicaSetContainer.ORIGINAL_PORT)
+        ));
+        props.put(MongoRoutedQueueBehave.PROPERTY_NOTIFY_ENABLED, "true");
+        props.put(QueueBox.PROPERTY_NOTIFY_FETCH_DELAY_MILLS, 60000);
+        new MongoConnection(props).getMongoCollection(Document.class).deleteMany(new Document());
+
+        MongoRoutedQueueBox<JustPojoRouted> queueBox = new MongoRoutedQueueBox<>(props, JustPojoRouted.class);
+        queueBox.start();
+        CountDownLatch door = new CountDownLatch(2);
+        queueBox.subscribe(DESTINATION, (message) -> door.countDown());
+
+        // let the consumer do its first fetch and switch to long notify delay
+        Thread.sleep(3000);
+
+        for (int i = 0; i < 2; i++) {
+            JustPojoRouted message = new JustPojoRouted(i, "notified");
+            message.setSource("test");
+            message.setDestination(DESTINATION);
+            queueBox.queue(message).get(5, TimeUnit.SECONDS);
+            Thread.sleep(500);
+        }
+
+        Assertions.assertTrue(door.await(5, TimeUnit.SECONDS));
+        queueBox.stop();
+    }
+}
@@ -0,0 +1,76 @@
+package net.c0f3.queuebox.mongo;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import gaillard.mongo.MongoConnectionParams;
+import gaillard.mongo.MongoQueueCore;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.infon.queuebox.mongo.MongoConnection;
+
+@Testcontainers
+public class MongoQueueReaperTest {
+
+    @Container
+    private static final MongoContainer MONGO = new MongoContainer();
+
+    private MongoConnection connection;
+    private MongoCollection<Document> collection;
+    private MongoCollection<Document> locks;
+    private MongoQueueCore queue;
+
+    @BeforeEach
+    public void setup() {
+        MongoConnectionParams mongoParams = MongoTestHelper.createMongoParams(MONGO);
+        connection = new MongoConnection(mongoParams.getProperties());
+        MongoDatabase db = connection.getDatabase();
+        collection = db.getCollection(MongoTestHelper.COLLECTION_NAME);
+        collection.drop();
+        locks = MongoQueueReaper.locksFor(db, MongoTestHelper.COLLECTION_NAME);
+        locks.drop();
+        queue = new MongoQueueCore(collection);
+    }
+
+    @AfterEach
+    public void closeConnection() {
+        connection.close();
+    }
+
+    @Test
+    public void singleActiveReaper() {
+        MongoQueueReaper first = new MongoQueueReaper(queue, locks, 60000);
+        MongoQueueReaper second = new MongoQueueReaper(queue, locks, 60000);
+
+        Assertions.assertTrue(first.runOnce());
+        Assertions.assertFalse(second.runOnce());
+        Assertions.assertTrue(first.runOnce());
+    }
+
+    @Test
+    public void leaseReleasedOnStop() {
+        MongoQueueReaper first = new MongoQueueReaper(queue, locks, 60000);
+        MongoQueueReaper second = new MongoQueueReaper(queue, locks, 60000);
+
+        first.start();
+        first.runOnce();
+        Assertions.assertFalse(second.runOnce());
+        first.stop();
+
+        Assertions.assertTrue(second.runOnce());
+    }
+
+    @Test
+    public void resetsStuckMessages() {
+        queue.send(new Document());
+        Assertions.assertNotNull(queue.get(new Document(), 0));
+
+        new MongoQueueReaper(queue, locks, 60000).runOnce();
+
+        Assertions.assertNotNull(queue.get(new Document(), Integer.MAX_VALUE, 0));
+    }
+}
@@ -0,0 +1,35 @@
+package net.c0f3.queuebox.mongo;
+
+import com.github.dockerjava.api.command.InspectContainerResponse;
+import org.testcontainers.containers.GenericContainer;
+
+/**
+ * single node replica set without authentication, required for change streams
+ */
+public class MongoReplicaSetContainer extends GenericContainer<MongoReplicaSetContainer> {
+
+    public static final String DATABASE = "test-db";
+    public static final int ORIGINAL_PORT = 27017;
+
+    public MongoReplicaSetContainer() {
+        super("mongo:4.2");
+        addExposedPort(ORIGINAL_PORT);
+        withCommand("--replSet", "rs0", "--bind_ip_all");
+    }
+
+    @Override
+    protected void containerIsStarted(InspectContainerResponse containerInfo) {
+        try {
+            ExecResult result = execInContainer(
+                    "mongo", "--eval",
+                    "rs.initiate({_id: 'rs0', members: [{_id: 0, host: 'localhost:" + ORIGINAL_PORT + "'}]});" +
+                            "while (!db.isMaster().ismaster) { sleep(100); }"
+            );
+            if (result.getExitCode() != 0) {
+                throw new IllegalStateException("replica set initiation failed: " + result.getStderr());
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
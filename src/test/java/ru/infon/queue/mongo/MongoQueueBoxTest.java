@@ -1,5 +1,6 @@
 package ru.infon.queue.mongo;
 
+import com.mongodb.client.MongoCollection;
 import gaillard.mongo.MongoConnectionParams;
 import net.c0f3.queuebox.mongo.MongoContainer;
 import net.c0f3.queuebox.mongo.MongoTestHelper;
@@ -8,21 +9,31 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
+import ru.infon.queuebox.MessageBatch;
 import ru.infon.queuebox.MessageContainer;
+import ru.infon.queuebox.QueueBatchConsumer;
+import ru.infon.queuebox.QueueBox;
 import ru.infon.queuebox.QueueConsumer;
 import ru.infon.queuebox.mongo.MongoConnection;
+import ru.infon.queuebox.mongo.MongoRoutedQueueBehave;
 import ru.infon.queuebox.mongo.MongoRoutedQueueBox;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * 07.06.2017
@@ -105,4 +116,271 @@ public class MongoQueueBoxTest {
 
     }
 
+
+    @Test
+    public void testQueueAll() throws Exception {
+        final int iterations = 100;
+        final String defaultDestination = "just_destination";
+
+        MongoRoutedQueueBox<JustPojoRouted> queueBox = startQueueBox(mongoParams.getProperties());
+        Map<Integer, JustPojoRouted> pojos = pojos(iterations, i -> defaultDestination, i -> "_" + i + "_!");
+        queueBox.queueAll(new ArrayList<>(pojos.values()), QueueBox.PRIORITY_HIGH).get(10, TimeUnit.SECONDS);
+        assertEquals(iterations, storedCount());
+
+        CountDownLatch door = new CountDownLatch(iterations);
+        queueBox.subscribe(defaultDestination, (message) -> door.countDown());
+        awaitAll(door);
+    }
+
+
+    @Test
+    public void testBatchedAcks() throws Exception {
+        final int iterations = 12;
+        final String defaultDestination = "just_destination";
+
+        Properties properties = mongoParams.getProperties();
+        properties.put(MongoRoutedQueueBehave.PROPERTY_ACK_BATCH_SIZE, 5);
+        properties.put(MongoRoutedQueueBehave.PROPERTY_ACK_FLUSH_MILLS, 60000);
+        MongoRoutedQueueBox<JustPojoRouted> queueBox = startQueueBox(properties);
+        Map<Integer, JustPojoRouted> pojos = pojos(iterations, i -> defaultDestination, i -> "_" + i + "_!");
+        queueBox.queueAll(new ArrayList<>(pojos.values())).get(10, TimeUnit.SECONDS);
+
+        CountDownLatch door = new CountDownLatch(iterations);
+        subscribe(queueBox, defaultDestination, door, message -> {
+        });
+        awaitAll(door);
+
+        // acks over full batches are still pending until stop
+        queueBox.stop();
+        assertEquals(0, storedCount());
+    }
+
+    @Test
+    public void testSharedFetch() throws Exception {
+        final int destinations = 20;
+        final int iterations = 5;
+
+        Properties properties = mongoParams.getProperties();
+        properties.put(QueueBox.PROPERTY_FETCH_SHARED, "true");
+        MongoRoutedQueueBox<JustPojoRouted> queueBox = startQueueBox(properties);
+        Map<Integer, JustPojoRouted> pojos = pojos(
+                destinations * iterations, i -> "destination_" + i % destinations, i -> "_" + i + "_!"
+        );
+        queueBox.queueAll(new ArrayList<>(pojos.values())).get(10, TimeUnit.SECONDS);
+
+        CountDownLatch door = new CountDownLatch(destinations * iterations);
+        for (int d = 0; d < destinations; d++) {
+            String destination = "destination_" + d;
+            subscribe(queueBox, destination, door,
+                    message -> assertEquals(destination, message.getMessage().getDestination()));
+        }
+        awaitAll(door);
+        queueBox.stop();
+    }
+
+    @Test
+    public void testBatchConsumer() throws Exception {
+        final int iterations = 25;
+        final String defaultDestination = "just_destination";
+
+        Properties properties = mongoParams.getProperties();
+        properties.put(QueueBox.PROPERTY_BATCH_MAX_SIZE, "10");
+        properties.put(QueueBox.PROPERTY_BATCH_MAX_WAIT_MILLS, "100");
+        properties.put(MongoRoutedQueueBehave.PROPERTY_FETCH_LIMIT, "10");
+        MongoRoutedQueueBox<JustPojoRouted> queueBox = startQueueBox(properties);
+        Map<Integer, JustPojoRouted> pojos = pojos(iterations, i -> defaultDestination, i -> "_" + i + "_!");
+        queueBox.queueAll(new ArrayList<>(pojos.values())).get(10, TimeUnit.SECONDS);
+
+        CountDownLatch door = new CountDownLatch(iterations);
+        queueBox.subscribe(new QueueBatchConsumer<JustPojoRouted>() {
+            @Override
+            public void onBatch(MessageBatch<JustPojoRouted> batch) {
+                assertTrue(batch.size() <= 10);
+                batch.done();
+                batch.forEach(message -> door.countDown());
+            }
+
+            @Override
+            public String getConsumerId() {
+                return defaultDestination;
+            }
+        });
+        awaitAll(door);
+        queueBox.stop();
+        assertEquals(0, storedCount());
+    }
+
+    @Test
+    public void testCodecSerializer() throws Exception {
+        final int iterations = 25;
+        final String defaultDestination = "just_destination";
+
+        Properties properties = mongoParams.getProperties();
+        properties.put(MongoRoutedQueueBehave.PROPERTY_SERIALIZER_CODEC, "true");
+        MongoRoutedQueueBox<JustPojoRouted> queueBox = startQueueBox(properties);
+        Map<Integer, JustPojoRouted> pojos = pojos(iterations, i -> defaultDestination, i -> "_" + i + "_!");
+        queueBox.queueAll(new ArrayList<>(pojos.values())).get(10, TimeUnit.SECONDS);
+
+        CountDownLatch door = new CountDownLatch(iterations);
+        subscribe(queueBox, defaultDestination, door,
+                message -> assertEquals(pojos.get(message.getMessage().getIntValue()), message.getMessage()));
+        awaitAll(door);
+        queueBox.stop();
+    }
+
+    @Test
+    public void testLazyDecode() throws Exception {
+        final int iterations = 20;
+        final String defaultDestination = "just_destination";
+
+        Properties properties = mongoParams.getProperties();
+        properties.put(MongoRoutedQueueBehave.PROPERTY_DECODE_LAZY, "true");
+        MongoRoutedQueueBox<JustPojoRouted> queueBox = startQueueBox(properties);
+        Map<Integer, JustPojoRouted> pojos = pojos(iterations, i -> defaultDestination, i -> "_" + i + "_!");
+        queueBox.queueAll(new ArrayList<>(pojos.values())).get(10, TimeUnit.SECONDS);
+
+        CountDownLatch door = new CountDownLatch(iterations);
+        subscribe(queueBox, defaultDestination, door, message -> {
+            assertEquals(defaultDestination, message.getDestination());
+            assertEquals("just_source", message.getSource());
+            assertFalse(message.isDecoded());
+            JustPojoRouted pojo = message.getMessage();
+            assertEquals(pojos.get(pojo.getIntValue()), pojo);
+        });
+        awaitAll(door);
+        queueBox.stop();
+    }
+
+    @Test
+    public void testBinaryPayload() throws Exception {
+        final int iterations = 20;
+        final String defaultDestination = "just_destination";
+
+        Properties properties = mongoParams.getProperties();
+        properties.put(MongoRoutedQueueBehave.PROPERTY_PAYLOAD_BINARY, "true");
+        properties.put(MongoRoutedQueueBehave.PROPERTY_PAYLOAD_COMPRESS_THRESHOLD, "0");
+        MongoRoutedQueueBox<JustPojoRouted> queueBox = startQueueBox(properties);
+        Map<Integer, JustPojoRouted> pojos = pojos(iterations, i -> defaultDestination, i -> {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 100; j++) {
+                text.append("_").append(i).append("_!");
+            }
+            return text.toString();
+        });
+        queueBox.queueAll(new ArrayList<>(pojos.values())).get(10, TimeUnit.SECONDS);
+
+        MongoConnection boxMongoConnection = new MongoConnection(mongoParams.getProperties());
+        Document stored = boxMongoConnection.getMongoCollection(Document.class).find().first();
+        assertNotNull(stored);
+        Document payload = (Document) stored.get("payload");
+        assertEquals(defaultDestination, payload.get("destination"));
+        assertEquals("deflate", payload.get("_compression"));
+
+        CountDownLatch door = new CountDownLatch(iterations);
+        subscribe(queueBox, defaultDestination, door,
+                message -> assertEquals(pojos.get(message.getMessage().getIntValue()), message.getMessage()));
+        awaitAll(door);
+        queueBox.stop();
+    }
+
+    @Test
+    public void testLeaseCollection() throws Exception {
+        final int iterations = 20;
+        final String defaultDestination = "just_destination";
+
+        Properties properties = mongoParams.getProperties();
+        properties.put(MongoRoutedQueueBox.PROPERTY_LEASE_COLLECTION, "true");
+        MongoRoutedQueueBox<JustPojoRouted> queueBox = startQueueBox(properties);
+        Map<Integer, JustPojoRouted> pojos = pojos(iterations, i -> defaultDestination, i -> "lease_" + i);
+        queueBox.queueAll(new ArrayList<>(pojos.values())).get(10, TimeUnit.SECONDS);
+
+        MongoConnection boxMongoConnection = new MongoConnection(mongoParams.getProperties());
+        MongoCollection<Document> leases = boxMongoConnection.getDatabase().getCollection(
+                boxMongoConnection.getMongoCollectionName() + MongoRoutedQueueBox.LEASES_COLLECTION_SUFFIX
+        );
+        CountDownLatch door = new CountDownLatch(iterations);
+        // message being processed is moved to lease collection
+        subscribe(queueBox, defaultDestination, door, message -> assertEquals(
+                1, leases.countDocuments(new Document("payload.intValue", message.getMessage().getIntValue()))
+        ));
+        awaitAll(door);
+        queueBox.stop();
+    }
+
+    @Test
+    public void testCompactSchemaMigration() throws Exception {
+        final int iterations = 20;
+        final String defaultDestination = "just_destination";
+
+        MongoRoutedQueueBox<JustPojoRouted> fullBox = startQueueBox(mongoParams.getProperties());
+        Map<Integer, JustPojoRouted> pojos = pojos(iterations, i -> defaultDestination, i -> "compact_" + i);
+        fullBox.queueAll(new ArrayList<>(pojos.values())).get(10, TimeUnit.SECONDS);
+        fullBox.stop();
+
+        Properties properties = mongoParams.getProperties();
+        properties.put(MongoRoutedQueueBehave.PROPERTY_SCHEMA_COMPACT, "true");
+        MongoRoutedQueueBox<JustPojoRouted> queueBox = startQueueBox(properties);
+        assertEquals(iterations, queueBox.migrateSchema());
+
+        MongoConnection boxMongoConnection = new MongoConnection(mongoParams.getProperties());
+        Document stored = boxMongoConnection.getMongoCollection(Document.class).find().first();
+        assertNotNull(stored);
+        assertEquals(2, stored.get("v"));
+        assertEquals(defaultDestination, ((Document) stored.get("p")).get("_d"));
+        assertFalse(((Document) stored.get("p")).containsKey("destination"));
+
+        CountDownLatch door = new CountDownLatch(iterations);
+        subscribe(queueBox, defaultDestination, door,
+                message -> assertEquals(pojos.get(message.getMessage().getIntValue()), message.getMessage()));
+        awaitAll(door);
+        queueBox.stop();
+    }
+
+    private MongoRoutedQueueBox<JustPojoRouted> startQueueBox(Properties properties) {
+        MongoRoutedQueueBox<JustPojoRouted> queueBox = new MongoRoutedQueueBox<>(properties, JustPojoRouted.class);
+        queueBox.start();
+        return queueBox;
+    }
+
+    private static Map<Integer, JustPojoRouted> pojos(int iterations, IntFunction<String> destination,
+                                                      IntFunction<String> text) {
+        Map<Integer, JustPojoRouted> pojos = new ConcurrentHashMap<>();
+        for (int i = 0; i < iterations; i++) {
+            JustPojoRouted pojo = new JustPojoRouted(i, text.apply(i));
+            pojo.setSource("just_source");
+            pojo.setDestination(destination.apply(i));
+            pojos.put(i, pojo);
+        }
+        return pojos;
+    }
+
+    /**
+     * Subscribes consumer which checks message, acknowledges it and counts it down
+     */
+    private static void subscribe(MongoRoutedQueueBox<JustPojoRouted> queueBox, String destination,
+                                  CountDownLatch door, Consumer<MessageContainer<JustPojoRouted>> check) {
+        queueBox.subscribe(new QueueConsumer<JustPojoRouted>() {
+            @Override
+            public void onPacket(MessageContainer<JustPojoRouted> message) {
+                check.accept(message);
+                message.done();
+                door.countDown();
+            }
+
+            @Override
+            public String getConsumerId() {
+                return destination;
+            }
+        });
+    }
+
+    private static void awaitAll(CountDownLatch door) throws InterruptedException {
+        door.await(60000, TimeUnit.MILLISECONDS);
+        assertEquals(0, door.getCount());
+    }
+
+    private long storedCount() {
+        MongoConnection boxMongoConnection = new MongoConnection(mongoParams.getProperties());
+        return boxMongoConnection.getMongoCollection(Document.class).countDocuments();
+    }
 }
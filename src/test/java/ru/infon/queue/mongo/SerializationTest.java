@@ -2,14 +2,32 @@ package ru.infon.queue.mongo;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoClientSettings;
+import net.c0f3.queuebox.DeflatePayloadCompressor;
+import net.c0f3.queuebox.PayloadCompressor;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import ru.infon.queuebox.mongo.MongoCodecSerializer;
 import ru.infon.queuebox.mongo.MongoJacksonSerializer;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 /**
  * 27.03.2017
@@ -34,6 +52,184 @@ public class SerializationTest {
         assertEquals(pojo, processedPojo);
     }
 
+    @Test
+    public void testCodecSerializer() {
+        JustPojoRouted pojo = new JustPojoRouted(13, "_1_3_!");
+        pojo.setSource("just_source");
+        pojo.setDestination("just_destination");
+        MongoCodecSerializer<JustPojoRouted> serializer = new MongoCodecSerializer<>(JustPojoRouted.class);
+        MongoJacksonSerializer<JustPojoRouted> jacksonSerializer = new MongoJacksonSerializer<>(JustPojoRouted.class);
+        CodecRegistry registry = serializer.codecRegistry(MongoClientSettings.getDefaultCodecRegistry());
+
+        Document message = new Document("payload", serializer.serialize(pojo).append("destination", "other"))
+                .append("running", false);
+        Document stored = decode(
+                encode(registry.get(Document.class), message),
+                MongoClientSettings.getDefaultCodecRegistry().get(Document.class)
+        );
+
+        System.out.println(stored);
+
+        Document expected = jacksonSerializer.serialize(pojo).append("destination", "other");
+        assertEquals(expected, stored.get("payload"));
+        assertEquals(false, stored.get("running"));
+
+        JustPojoRouted processedPojo = decode(encode(serializer, pojo), serializer);
+        assertEquals(pojo, processedPojo);
+        assertEquals(pojo, serializer.deserialize(jacksonSerializer.serialize(pojo)));
+
+        RawBsonDocument payload = new RawBsonDocument(encode(serializer, pojo));
+        JustPojoRouted unrouted = serializer.decode(
+                payload.asBsonReader(),
+                new HashSet<>(Arrays.asList("source", "destination"))
+        );
+        assertEquals(pojo.getStringValue(), unrouted.getStringValue());
+        assertNull(unrouted.getDestination());
+    }
+
+    private static <V> byte[] encode(Codec<V> codec, V value) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        codec.encode(new BsonBinaryWriter(buffer), value, EncoderContext.builder().build());
+        return buffer.toByteArray();
+    }
+
+    private static <V> V decode(byte[] bytes, Codec<V> codec) {
+        return codec.decode(new BsonBinaryReader(ByteBuffer.wrap(bytes)), DecoderContext.builder().build());
+    }
+
+    private double testJacksonEncode(int iterations) {
+        IncrementalAverage mean = new IncrementalAverage();
+        MongoJacksonSerializer<JustPojo> serializer = new MongoJacksonSerializer<>(JustPojo.class);
+        Codec<Document> documentCodec = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+
+        for (int i = 0; i < iterations; i++) {
+            long time = System.nanoTime();
+            JustPojo pojo = new JustPojo(i, "_" + i + "_!");
+            byte[] bytes = encode(documentCodec, new Document("payload", serializer.serialize(pojo)));
+            JustPojo result = serializer.deserialize((Document) decode(bytes, documentCodec).get("payload"));
+            mean.increment(System.nanoTime() - time);
+            assertEquals(pojo, result);
+        }
+
+        return mean.getResult();
+    }
+
+    private double testCodecEncode(int iterations) {
+        IncrementalAverage mean = new IncrementalAverage();
+        MongoCodecSerializer<JustPojo> serializer = new MongoCodecSerializer<>(JustPojo.class);
+        CodecRegistry registry = serializer.codecRegistry(MongoClientSettings.getDefaultCodecRegistry());
+        Codec<Document> documentCodec = registry.get(Document.class);
+
+        for (int i = 0; i < iterations; i++) {
+            long time = System.nanoTime();
+            JustPojo pojo = new JustPojo(i, "_" + i + "_!");
+            byte[] bytes = encode(documentCodec, new Document("payload", serializer.serialize(pojo)));
+            BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(bytes));
+            reader.readStartDocument();
+            reader.readName("payload");
+            JustPojo result = serializer.decode(reader, DecoderContext.builder().build());
+            mean.increment(System.nanoTime() - time);
+            assertEquals(pojo, result);
+        }
+
+        return mean.getResult();
+    }
+
+    @Test
+    public void encodingSpeedTest() {
+        int iterations = 100000;
+        long warmupTime = 10000;
+
+        while (warmupTime > 0) {
+            long time = System.currentTimeMillis();
+            testJacksonEncode(iterations);
+            testCodecEncode(iterations);
+            time = System.currentTimeMillis() - time;
+            warmupTime -= time;
+        }
+
+        double jackson = testJacksonEncode(iterations);
+        System.out.println("avg nano time jackson encode/decode " + jackson + "( " + Math.round(jackson / 1000) + " )");
+        double codec = testCodecEncode(iterations);
+        System.out.println("avg nano time codec encode/decode " + codec + "( " + Math.round(codec / 1000) + " )");
+        Assertions.assertTrue(codec < jackson);
+    }
+
+    private static JustPojo largePojo(int i) {
+        StringBuilder text = new StringBuilder("{");
+        for (int field = 0; field < 50; field++) {
+            text.append("\"field_").append(field).append("\": \"value ").append(i + field).append("\", ");
+        }
+        return new JustPojo(i, text.append("}").toString());
+    }
+
+    private static Document withScheduling(Document payload) {
+        return new Document("payload", payload.append("source", "just_source").append("destination", "just_destination"))
+                .append("running", false)
+                .append("resetTimestamp", new Date(Long.MAX_VALUE))
+                .append("earliestGet", new Date())
+                .append("priority", 0.0)
+                .append("created", new Date());
+    }
+
+    /**
+     * @return average message size in bytes and average nano time of encode and decode
+     */
+    private double[] testPayloadMode(int iterations, boolean binary) {
+        IncrementalAverage size = new IncrementalAverage();
+        IncrementalAverage mean = new IncrementalAverage();
+        MongoJacksonSerializer<JustPojo> serializer = new MongoJacksonSerializer<>(JustPojo.class);
+        PayloadCompressor compressor = new DeflatePayloadCompressor();
+        Codec<Document> documentCodec = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+
+        for (int i = 0; i < iterations; i++) {
+            JustPojo pojo = largePojo(i);
+            long time = System.nanoTime();
+            Document payload = serializer.serialize(pojo);
+            if (binary) {
+                byte[] body = compressor.compress(encode(documentCodec, payload));
+                payload = new Document("_body", new Binary(body)).append("_compression", compressor.getName());
+            }
+            byte[] bytes = encode(documentCodec, withScheduling(payload));
+            Document stored = (Document) decode(bytes, documentCodec).get("payload");
+            if (binary) {
+                byte[] body = compressor.decompress(((Binary) stored.get("_body")).getData());
+                stored = decode(body, documentCodec);
+            } else {
+                stored.remove("source");
+                stored.remove("destination");
+            }
+            JustPojo result = serializer.deserialize(stored);
+            mean.increment(System.nanoTime() - time);
+            size.increment(bytes.length);
+            assertEquals(pojo, result);
+        }
+
+        return new double[]{size.getResult(), mean.getResult()};
+    }
+
+    @Test
+    public void payloadModeTest() {
+        int iterations = 20000;
+        long warmupTime = 5000;
+
+        while (warmupTime > 0) {
+            long time = System.currentTimeMillis();
+            testPayloadMode(iterations, false);
+            testPayloadMode(iterations, true);
+            time = System.currentTimeMillis() - time;
+            warmupTime -= time;
+        }
+
+        double[] expanded = testPayloadMode(iterations, false);
+        System.out.println("expanded payload avg bytes " + Math.round(expanded[0])
+                + ", avg nano time " + expanded[1] + "( " + Math.round(expanded[1] / 1000) + " )");
+        double[] binary = testPayloadMode(iterations, true);
+        System.out.println("deflate binary payload avg bytes " + Math.round(binary[0])
+                + ", avg nano time " + binary[1] + "( " + Math.round(binary[1] / 1000) + " )");
+        Assertions.assertTrue(binary[0] < expanded[0]);
+    }
+
     private double testConvert(int iterations) {
         long testTime = 0;
         IncrementalAverage mean = new IncrementalAverage();
@@ -0,0 +1,58 @@
+package ru.infon.queuebox;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MessageBatchTest {
+
+    @Test
+    public void singleMessageIsHandedAsBatch() {
+        List<Integer> sizes = new ArrayList<>();
+        List<MessageContainer<String>> acked = new ArrayList<>();
+        QueueConsumer<String> consumer = MessageBatch.singles(new QueueBatchConsumer<String>() {
+            @Override
+            public void onBatch(MessageBatch<String> batch) {
+                sizes.add(batch.size());
+                batch.done();
+            }
+
+            @Override
+            public String getConsumerId() {
+                return "batch";
+            }
+        }, new QueuePacketHolder<String>() {
+            @Override
+            public int getFetchLimit() {
+                return 1;
+            }
+
+            @Override
+            public Collection<MessageContainer<String>> fetch(QueueConsumer<String> consumer) {
+                return new ArrayList<>();
+            }
+
+            @Override
+            public void ack(MessageContainer<String> packet) {
+                acked.add(packet);
+            }
+
+            @Override
+            public void reset(MessageContainer<String> packet) {
+            }
+        });
+
+        MessageContainer<String> message = new MessageContainer<>("message");
+        consumer.onPacket(message);
+
+        assertEquals("batch", consumer.getConsumerId());
+        assertEquals(1, sizes.size());
+        assertEquals(1, sizes.get(0));
+        assertEquals(1, acked.size());
+        assertEquals(message, acked.get(0));
+    }
+}
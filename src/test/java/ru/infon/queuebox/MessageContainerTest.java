@@ -0,0 +1,37 @@
+package ru.infon.queuebox;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MessageContainerTest {
+
+    @Test
+    public void lazyMessageIsDecodedOnce() {
+        AtomicInteger decodes = new AtomicInteger();
+        MessageContainer<String> container = MessageContainer.lazy(() -> "message" + decodes.incrementAndGet());
+        container.setId("id");
+        container.setDestination("destination");
+
+        assertEquals("id", container.getId());
+        assertEquals("destination", container.getDestination());
+        assertFalse(container.isDecoded());
+        assertEquals(0, decodes.get());
+
+        assertEquals("message1", container.getMessage());
+        assertEquals("message1", container.getMessage());
+        assertTrue(container.isDecoded());
+        assertEquals(1, decodes.get());
+    }
+
+    @Test
+    public void eagerMessageIsDecoded() {
+        MessageContainer<String> container = new MessageContainer<>("message");
+        assertTrue(container.isDecoded());
+        assertEquals("message", container.getMessage());
+    }
+}
@@ -0,0 +1,451 @@
+package ru.infon.queuebox;
+
+import net.c0f3.queuebox.QueueBoxContext;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class QueueEngineTest {
+
+    @Test
+    public void consumersShareScheduler() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(QueueBox.PROPERTY_FETCH_DELAY_MILLS, "10");
+        properties.setProperty(QueueBox.PROPERTY_FETCH_DELAY_MAX_MILLS, "10");
+        CountingBehave behave = new CountingBehave();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        QueueEngine<String> engine = new QueueEngine<>(properties, behave, executor);
+
+        for (int i = 0; i < 100; i++) {
+            engine.registerConsumer(consumer("consumer" + i));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (behave.finds.get() < 500 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assertions.assertTrue(behave.finds.get() >= 500);
+        Assertions.assertEquals(1, countThreads("queuebox-scheduler"));
+
+        engine.shutdown();
+        // terminated executor thread may still be exiting
+        deadline = System.currentTimeMillis() + 1000;
+        while (countThreads("queuebox-scheduler") > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(0, countThreads("queuebox-scheduler"));
+        int finds = behave.finds.get();
+        Thread.sleep(100);
+        // fetches already submitted to executor may complete
+        Assertions.assertTrue(behave.finds.get() - finds <= 100);
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sharedFetcherServesAllConsumers() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(QueueBox.PROPERTY_FETCH_SHARED, "true");
+        properties.setProperty(QueueBox.PROPERTY_FETCH_DELAY_MILLS, "10");
+        StoredBehave behave = new StoredBehave(2);
+        // hot destination has old backlog and slow handler
+        for (int i = 0; i < 1000; i++) {
+            behave.add("hot", "hot" + i);
+        }
+        for (int d = 0; d < 50; d++) {
+            behave.add("cold" + d, "cold" + d);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        QueueEngine<String> engine = new QueueEngine<>(properties, behave, executor);
+
+        CountDownLatch cold = new CountDownLatch(50);
+        engine.registerConsumer(consumer("hot", message -> sleep(50)));
+        for (int d = 0; d < 50; d++) {
+            engine.registerConsumer(consumer("cold" + d, message -> cold.countDown()));
+        }
+
+        Assertions.assertTrue(cold.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(0, behave.finds.get());
+        Assertions.assertTrue(behave.sharedFinds.get() < 50);
+        engine.shutdown();
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sharedFetcherCapsSkewedBacklog() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(QueueBox.PROPERTY_FETCH_SHARED, "true");
+        properties.setProperty(QueueBox.PROPERTY_FETCH_DELAY_MILLS, "10");
+        StoredBehave behave = new StoredBehave(2);
+        // old backlog of one destination is ahead of all others
+        for (int i = 0; i < 1000; i++) {
+            behave.add("hot", "hot" + i);
+        }
+        for (int d = 0; d < 10; d++) {
+            for (int i = 0; i < 10; i++) {
+                behave.add("cold" + d, "cold" + d);
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        QueueEngine<String> engine = new QueueEngine<>(properties, behave, executor);
+
+        AtomicInteger hot = new AtomicInteger();
+        CountDownLatch cold = new CountDownLatch(100);
+        engine.registerConsumer(consumer("hot", message -> {
+            hot.incrementAndGet();
+            sleep(20);
+        }));
+        for (int d = 0; d < 10; d++) {
+            engine.registerConsumer(consumer("cold" + d, message -> cold.countDown()));
+        }
+
+        Assertions.assertTrue(cold.await(10, TimeUnit.SECONDS));
+        engine.shutdown();
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        // hot consumer never gets more than its free capacity, so nothing waits in its buffer with running lease
+        Assertions.assertEquals(2, behave.maxLimits.get("hot"));
+        Assertions.assertTrue(hot.get() > 0);
+    }
+
+    @Test
+    public void prefetchOverlapsFetchWithProcessing() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(QueueBox.PROPERTY_PREFETCH_SIZE, "4");
+        properties.setProperty(QueueBox.PROPERTY_PREFETCH_LOW_WATERMARK, "2");
+        AtomicInteger processing = new AtomicInteger();
+        AtomicInteger handled = new AtomicInteger();
+        InfiniteBehave behave = new InfiniteBehave(processing);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        QueueEngine<String> engine = new QueueEngine<>(properties, behave, executor);
+
+        engine.registerConsumer(consumer("consumer", message -> {
+            processing.incrementAndGet();
+            sleep(20);
+            processing.decrementAndGet();
+            handled.incrementAndGet();
+        }));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (handled.get() < 50 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        engine.shutdown();
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assertions.assertTrue(behave.fetchesWhileProcessing.get() > 0);
+        // fetched ahead messages are returned to storage, not lost and not failed
+        Assertions.assertEquals(behave.fetched.get(), handled.get() + behave.released.get());
+        Assertions.assertEquals(0, behave.resets.get());
+    }
+
+    @Test
+    public void manyConsumersOnSmallPool() throws Exception {
+        final int consumers = 200;
+        final int messages = 20;
+        Properties properties = new Properties();
+        properties.setProperty(QueueBox.PROPERTY_FETCH_DELAY_MILLS, "5");
+        properties.setProperty(QueueBox.PROPERTY_FETCH_DELAY_MAX_MILLS, "50");
+        properties.setProperty(QueueBox.PROPERTY_PREFETCH_SIZE, "5");
+        StoredBehave behave = new StoredBehave(5);
+        for (int i = 0; i < messages; i++) {
+            for (int c = 0; c < consumers; c++) {
+                behave.add("consumer" + c, "message" + i);
+            }
+        }
+        // pool is much smaller than count of consumers with pending messages
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        QueueEngine<String> engine = new QueueEngine<>(properties, behave, executor);
+
+        CountDownLatch door = new CountDownLatch(consumers * messages);
+        for (int c = 0; c < consumers; c++) {
+            engine.registerConsumer(consumer("consumer" + c, message -> door.countDown()));
+        }
+
+        Assertions.assertTrue(door.await(60, TimeUnit.SECONDS), "not processed: " + door.getCount());
+        engine.shutdown();
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void batchConsumerAcksInBulk() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(QueueBox.PROPERTY_BATCH_MAX_SIZE, "10");
+        properties.setProperty(QueueBox.PROPERTY_BATCH_MAX_WAIT_MILLS, "200");
+        StoredBehave behave = new StoredBehave(10);
+        for (int i = 0; i < 25; i++) {
+            behave.add("batch", "message" + i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        QueueEngine<String> engine = new QueueEngine<>(properties, behave, executor);
+
+        List<Integer> sizes = new CopyOnWriteArrayList<>();
+        CountDownLatch door = new CountDownLatch(25);
+        engine.registerBatchConsumer(new QueueBatchConsumer<String>() {
+            @Override
+            public void onBatch(MessageBatch<String> batch) {
+                sizes.add(batch.size());
+                if (sizes.size() == 1) {
+                    // first message of first batch is acknowledged alone, second fails
+                    batch.get(0).done();
+                    batch.get(1).fail();
+                }
+                batch.done();
+                batch.forEach(message -> door.countDown());
+            }
+
+            @Override
+            public String getConsumerId() {
+                return "batch";
+            }
+        });
+
+        Assertions.assertTrue(door.await(10, TimeUnit.SECONDS));
+        engine.shutdown();
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assertions.assertEquals(Arrays.asList(10, 10, 5), sizes);
+        Assertions.assertEquals(Arrays.asList(8, 10, 5), behave.bulkAcks);
+        Assertions.assertEquals(1, behave.acks.get());
+        Assertions.assertEquals(1, behave.resets.get());
+    }
+
+    @Test
+    public void batchConsumerFailureResetsPending() throws Exception {
+        Properties properties = new Properties();
+        StoredBehave behave = new StoredBehave(5);
+        for (int i = 0; i < 5; i++) {
+            behave.add("batch", "message" + i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        QueueEngine<String> engine = new QueueEngine<>(properties, behave, executor);
+
+        CountDownLatch door = new CountDownLatch(1);
+        engine.registerBatchConsumer(new QueueBatchConsumer<String>() {
+            @Override
+            public void onBatch(MessageBatch<String> batch) {
+                batch.get(0).done();
+                door.countDown();
+                throw new IllegalStateException("bulk write failed");
+            }
+
+            @Override
+            public String getConsumerId() {
+                return "batch";
+            }
+        });
+
+        Assertions.assertTrue(door.await(10, TimeUnit.SECONDS));
+        engine.shutdown();
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assertions.assertEquals(1, behave.acks.get());
+        Assertions.assertEquals(Collections.singletonList(4), behave.bulkResets);
+    }
+
+    private static void sleep(long mills) {
+        try {
+            Thread.sleep(mills);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long countThreads(String name) {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals(name))
+                .count();
+    }
+
+    private static QueueConsumer<String> consumer(String id) {
+        return consumer(id, message -> {
+        });
+    }
+
+    private static QueueConsumer<String> consumer(String id, Consumer<String> handler) {
+        return new QueueConsumer<String>() {
+            @Override
+            public void onPacket(MessageContainer<String> message) {
+                handler.accept(message.getMessage());
+                message.done();
+            }
+
+            @Override
+            public String getConsumerId() {
+                return id;
+            }
+        };
+    }
+
+    private static class InfiniteBehave extends CountingBehave {
+
+        private final AtomicInteger processing;
+        private final AtomicInteger fetchesWhileProcessing = new AtomicInteger();
+        private final AtomicInteger fetched = new AtomicInteger();
+        private final AtomicInteger released = new AtomicInteger();
+        private final AtomicInteger resets = new AtomicInteger();
+
+        InfiniteBehave(AtomicInteger processing) {
+            this.processing = processing;
+        }
+
+        @Override
+        public int getFetchLimit() {
+            return 2;
+        }
+
+        @Override
+        public Collection<MessageContainer<String>> find(QueueConsumer<String> consumer, int limit) {
+            if (processing.get() > 0) {
+                fetchesWhileProcessing.incrementAndGet();
+            }
+            List<MessageContainer<String>> result = new ArrayList<>();
+            for (int i = 0; i < limit; i++) {
+                result.add(new MessageContainer<>("message" + fetched.incrementAndGet()));
+            }
+            return result;
+        }
+
+        @Override
+        public void reset(MessageContainer<String> packet) {
+            resets.incrementAndGet();
+        }
+
+        @Override
+        public void release(MessageContainer<String> packet) {
+            released.incrementAndGet();
+        }
+    }
+
+    private static class StoredBehave extends CountingBehave {
+
+        private final AtomicInteger sharedFinds = new AtomicInteger();
+        private final AtomicInteger acks = new AtomicInteger();
+        private final AtomicInteger resets = new AtomicInteger();
+        private final List<Integer> bulkAcks = new CopyOnWriteArrayList<>();
+        private final List<Integer> bulkResets = new CopyOnWriteArrayList<>();
+        private final List<String[]> stored = new ArrayList<>();
+        private final Map<String, Integer> maxLimits = new ConcurrentHashMap<>();
+        private final int fetchLimit;
+
+        StoredBehave(int fetchLimit) {
+            this.fetchLimit = fetchLimit;
+        }
+
+        synchronized void add(String destination, String message) {
+            stored.add(new String[]{destination, message});
+        }
+
+        @Override
+        public void remove(MessageContainer<String> packet) {
+            acks.incrementAndGet();
+        }
+
+        @Override
+        public void reset(MessageContainer<String> packet) {
+            resets.incrementAndGet();
+        }
+
+        @Override
+        public void removeAll(Collection<MessageContainer<String>> packets) {
+            bulkAcks.add(packets.size());
+        }
+
+        @Override
+        public void resetAll(Collection<MessageContainer<String>> packets) {
+            bulkResets.add(packets.size());
+        }
+
+        @Override
+        public int getFetchLimit() {
+            return fetchLimit;
+        }
+
+        @Override
+        public Collection<MessageContainer<String>> find(QueueConsumer<String> consumer, int limit) {
+            finds.incrementAndGet();
+            Collection<MessageContainer<String>> found = findAll(Collections.singletonMap(consumer, limit))
+                    .get(consumer.getConsumerId());
+            sharedFinds.decrementAndGet();
+            return found == null ? Collections.emptyList() : found;
+        }
+
+        @Override
+        public synchronized Map<String, Collection<MessageContainer<String>>> findAll(
+                Map<QueueConsumer<String>, Integer> limits
+        ) {
+            sharedFinds.incrementAndGet();
+            Map<String, Integer> remaining = new HashMap<>();
+            limits.forEach((consumer, limit) -> {
+                remaining.put(consumer.getConsumerId(), limit);
+                maxLimits.merge(consumer.getConsumerId(), limit, Math::max);
+            });
+            Map<String, Collection<MessageContainer<String>>> result = new HashMap<>();
+            Iterator<String[]> it = stored.iterator();
+            while (it.hasNext()) {
+                String[] message = it.next();
+                if (remaining.getOrDefault(message[0], 0) > 0) {
+                    it.remove();
+                    remaining.merge(message[0], -1, Integer::sum);
+                    result.computeIfAbsent(message[0], destination -> new ArrayList<>())
+                            .add(new MessageContainer<>(message[1]));
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class CountingBehave implements QueueBehave<String> {
+
+        final AtomicInteger finds = new AtomicInteger();
+
+        @Override
+        public int getFetchLimit() {
+            return 1;
+        }
+
+        @Override
+        public void put(MessageContainer<String> event) {
+        }
+
+        @Override
+        public Collection<MessageContainer<String>> find(QueueConsumer<String> consumer) {
+            finds.incrementAndGet();
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void remove(MessageContainer<String> packet) {
+        }
+
+        @Override
+        public void reset(MessageContainer<String> packet) {
+        }
+
+        @Override
+        public void setContext(QueueBoxContext context) {
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ru.infon.queuebox;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class QueueFetchBackoffTest {
+
+    @Test
+    public void doublesUpToMaxAndResets() {
+        QueueFetchBackoff backoff = new QueueFetchBackoff(100, 1000, 0);
+
+        Assertions.assertEquals(100, backoff.onEmpty());
+        Assertions.assertEquals(200, backoff.onEmpty());
+        Assertions.assertEquals(400, backoff.onEmpty());
+        Assertions.assertEquals(800, backoff.onEmpty());
+        Assertions.assertEquals(1000, backoff.onEmpty());
+        Assertions.assertEquals(1000, backoff.onEmpty());
+        Assertions.assertEquals(1000, backoff.getCurrentDelayMills());
+
+        Assertions.assertEquals(100, backoff.onFound());
+        Assertions.assertEquals(100, backoff.getCurrentDelayMills());
+        Assertions.assertEquals(100, backoff.onEmpty());
+    }
+
+    @Test
+    public void jitterStaysInRange() {
+        QueueFetchBackoff backoff = new QueueFetchBackoff(1000, 1000, 20);
+        for (int i = 0; i < 1000; i++) {
+            long delay = backoff.onEmpty();
+            Assertions.assertTrue(delay >= 800 && delay <= 1200, "delay " + delay);
+        }
+    }
+
+    @Test
+    public void maxBelowMinMeansConstantDelay() {
+        QueueFetchBackoff backoff = new QueueFetchBackoff(100, 10, 0);
+        Assertions.assertEquals(100, backoff.onEmpty());
+        Assertions.assertEquals(100, backoff.onEmpty());
+    }
+}
@@ -0,0 +1,49 @@
+package ru.infon.queuebox;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class QueueFetchSizerTest {
+
+    @Test
+    public void growsOnFullFetches() {
+        QueueFetchSizer sizer = new QueueFetchSizer(1, 5, 2, 100);
+
+        sizer.onFetched(2, 2);
+        Assertions.assertEquals(3, sizer.getLimit());
+        sizer.onFetched(1, 3);
+        Assertions.assertEquals(3, sizer.getLimit());
+        for (int i = 0; i < 10; i++) {
+            sizer.onHandled(10);
+            sizer.onFetched(sizer.getLimit(), sizer.getLimit());
+        }
+        Assertions.assertEquals(5, sizer.getLimit());
+    }
+
+    @Test
+    public void halvesOnSlowHandling() {
+        QueueFetchSizer sizer = new QueueFetchSizer(2, 100, 40, 100);
+
+        sizer.onHandled(50);
+        sizer.onHandled(250);
+        sizer.onFetched(40, 40);
+        Assertions.assertEquals(20, sizer.getLimit());
+
+        for (int i = 0; i < 10; i++) {
+            sizer.onHandled(1000);
+            sizer.onFetched(1, 1);
+        }
+        Assertions.assertEquals(2, sizer.getLimit());
+    }
+
+    @Test
+    public void staticWithoutBounds() {
+        QueueFetchSizer sizer = new QueueFetchSizer(10, 10, 10, 100);
+
+        Assertions.assertFalse(sizer.isAdaptive());
+        sizer.onFetched(10, 10);
+        sizer.onHandled(1000);
+        sizer.onFetched(10, 10);
+        Assertions.assertEquals(10, sizer.getLimit());
+    }
+}
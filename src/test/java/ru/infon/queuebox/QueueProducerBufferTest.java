@@ -0,0 +1,183 @@
+package ru.infon.queuebox;
+
+import net.c0f3.queuebox.QueueBoxContext;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class QueueProducerBufferTest {
+
+    @Test
+    public void batchesBySize() throws Exception {
+        RecordingBehave behave = new RecordingBehave(null);
+        QueueProducerBuffer<String> buffer = new QueueProducerBuffer<>(
+                new QueueEngine<>(new Properties(), behave, null),
+                10, 60000, 100, 0
+        );
+        buffer.start();
+
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(buffer.add(new MessageContainer<>("m" + i)));
+        }
+        for (int i = 0; i < 20; i++) {
+            Assertions.assertEquals("m" + i, futures.get(i).get(10, TimeUnit.SECONDS));
+        }
+        buffer.close();
+
+        Assertions.assertEquals(2, behave.batches.size());
+        Assertions.assertEquals(10, behave.batches.get(0).size());
+    }
+
+    @Test
+    public void flushesOnLinger() throws Exception {
+        RecordingBehave behave = new RecordingBehave(null);
+        QueueProducerBuffer<String> buffer = new QueueProducerBuffer<>(
+                new QueueEngine<>(new Properties(), behave, null),
+                1000, 5, 1000, 0
+        );
+        buffer.start();
+
+        Future<String> future = buffer.add(new MessageContainer<>("single"));
+
+        Assertions.assertEquals("single", future.get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(Collections.singletonList(1), sizes(behave.batches));
+        buffer.close();
+    }
+
+    @Test
+    public void failsWhenFull() throws Exception {
+        CountDownLatch storage = new CountDownLatch(1);
+        RecordingBehave behave = new RecordingBehave(storage);
+        QueueProducerBuffer<String> buffer = new QueueProducerBuffer<>(
+                new QueueEngine<>(new Properties(), behave, null),
+                1, 0, 1, 0
+        );
+        buffer.start();
+
+        // first message is taken by flusher which waits for storage, second fills the buffer
+        buffer.add(new MessageContainer<>("first"));
+        behave.started.await(10, TimeUnit.SECONDS);
+        buffer.add(new MessageContainer<>("second"));
+
+        Assertions.assertThrows(
+                RejectedExecutionException.class,
+                () -> buffer.add(new MessageContainer<>("third"))
+        );
+        storage.countDown();
+        buffer.close();
+
+        Assertions.assertEquals(2, sizes(behave.batches).size());
+    }
+
+    @Test
+    public void flushesOnClose() throws Exception {
+        RecordingBehave behave = new RecordingBehave(null);
+        QueueProducerBuffer<String> buffer = new QueueProducerBuffer<>(
+                new QueueEngine<>(new Properties(), behave, null),
+                1000, 60000, 1000, 0
+        );
+        buffer.start();
+
+        Future<String> future = buffer.add(new MessageContainer<>("pending"));
+        buffer.close();
+
+        Assertions.assertTrue(future.isDone());
+        Assertions.assertEquals("pending", future.get());
+    }
+
+    @Test
+    public void failsMessageAddedDuringClose() throws Exception {
+        RecordingBehave behave = new RecordingBehave(null);
+        // flusher is not started, so buffered message stays until close
+        QueueProducerBuffer<String> buffer = new QueueProducerBuffer<>(
+                new QueueEngine<>(new Properties(), behave, null),
+                1, 0, 1, 10000
+        );
+        Future<String> first = buffer.add(new MessageContainer<>("first"));
+
+        CompletableFuture<Future<String>> second = new CompletableFuture<>();
+        Thread producer = new Thread(() -> second.complete(buffer.add(new MessageContainer<>("second"))));
+        producer.start();
+        while (producer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        buffer.close();
+
+        Assertions.assertTrue(first.isDone());
+        ExecutionException error = Assertions.assertThrows(
+                ExecutionException.class,
+                () -> second.get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS)
+        );
+        Assertions.assertTrue(error.getCause() instanceof RejectedExecutionException);
+    }
+
+    private static List<Integer> sizes(List<Collection<MessageContainer<String>>> batches) {
+        List<Integer> result = new ArrayList<>();
+        batches.forEach(batch -> result.add(batch.size()));
+        return result;
+    }
+
+    private static class RecordingBehave implements QueueBehave<String> {
+
+        private final List<Collection<MessageContainer<String>>> batches = new CopyOnWriteArrayList<>();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch storage;
+
+        RecordingBehave(CountDownLatch storage) {
+            this.storage = storage;
+        }
+
+        @Override
+        public void putAll(Collection<MessageContainer<String>> events) {
+            started.countDown();
+            if (storage != null) {
+                try {
+                    storage.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            batches.add(new ArrayList<>(events));
+        }
+
+        @Override
+        public int getFetchLimit() {
+            return 0;
+        }
+
+        @Override
+        public void put(MessageContainer<String> event) {
+            putAll(Collections.singletonList(event));
+        }
+
+        @Override
+        public Collection<MessageContainer<String>> find(QueueConsumer<String> consumer) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void remove(MessageContainer<String> packet) {
+        }
+
+        @Override
+        public void reset(MessageContainer<String> packet) {
+        }
+
+        @Override
+        public void setContext(QueueBoxContext context) {
+        }
+    }
+}